@@ -0,0 +1,101 @@
+package org.homio.addon.mail;
+
+import jakarta.mail.Folder;
+import jakarta.mail.Message;
+import jakarta.mail.Part;
+import jakarta.mail.Store;
+import org.homio.addon.mail.MailService.MessageWrapper;
+import org.homio.addon.mail.benchmark.MailCorpus;
+import org.homio.addon.mail.benchmark.MailServerStub;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * First open of newsletter mail with inline images: fetch and render body like MailService.getFullMailBody, and
+ * optionally stream every inline image like attachment endpoint does for img tags. Folder is reopened on each call, so
+ * client side caches of jakarta.mail don't hide server round-trips. Cid link resolving alone is measured by
+ * MailHtmlRendererBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MailBodyBenchmark {
+
+  @Param({"200"})
+  public int bodySizeKb;
+
+  @Param({"10"})
+  public int images;
+
+  private MailServerStub server;
+  private Store store;
+
+  @Setup
+  public void setup() throws Exception {
+    server = new MailServerStub();
+    server.deliver(List.of(MailCorpus.newsletterMessage(server.clientSession(), MailServerStub.USER, 1, bodySizeKb, images)));
+    store = server.connectImap();
+  }
+
+  @TearDown
+  public void tearDown() throws Exception {
+    store.close();
+    server.close();
+  }
+
+  @Benchmark
+  public String firstOpen() throws Exception {
+    try (Folder folder = openInbox()) {
+      return readBody(folder.getMessage(1)).getFullBody();
+    }
+  }
+
+  @Benchmark
+  public long firstOpenWithImages() throws Exception {
+    try (Folder folder = openInbox()) {
+      Message message = folder.getMessage(1);
+      MessageWrapper wrapper = readBody(message);
+      long size = wrapper.getFullBody().length();
+      for (MailService.InlineImage image : wrapper.getImages().values()) {
+        Part part = MailMimeTree.findPart(message, image.section());
+        try (InputStream stream = part.getInputStream()) {
+          size += stream.transferTo(OutputStream.nullOutputStream());
+        }
+      }
+      return size;
+    }
+  }
+
+  private Folder openInbox() throws Exception {
+    Folder folder = store.getFolder("INBOX");
+    folder.open(Folder.READ_ONLY);
+    return folder;
+  }
+
+  private static MessageWrapper readBody(Message message) throws Exception {
+    MailService.prefetch(message.getFolder(), new Message[]{message});
+    MessageWrapper wrapper = new MessageWrapper("1", message.getSubject(), "INBOX", message.getFrom()[0].toString(),
+      null, 1, -1, message.getReceivedDate(), message.getSize(), true, Set.of());
+    MailService.readMessageBody(message, wrapper);
+    return wrapper;
+  }
+}
@@ -0,0 +1,76 @@
+package org.homio.addon.mail;
+
+import jakarta.mail.Folder;
+import jakarta.mail.Store;
+import org.homio.addon.mail.benchmark.MailCorpus;
+import org.homio.addon.mail.benchmark.MailServerStub;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.file.Files;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Initial folder sync of N mails with the same MailFolderReader that MailService.readFolder uses: search, single
+ * prefetch FETCH, part tree and preview of each mail. Index variant also reads text for full-text index. Lives in
+ * addon package to reach package-private reader
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MailListingBenchmark {
+
+  @Param({"100", "1000"})
+  public int mails;
+
+  @Param({"false", "true"})
+  public boolean indexText;
+
+  private MailServerStub server;
+  private Store store;
+  private MailEntity entity;
+  private MailPop3SeenSet pop3SeenSet;
+
+  @Setup
+  public void setup() throws Exception {
+    server = new MailServerStub();
+    server.deliver(MailCorpus.inbox(server.clientSession(), MailServerStub.USER, mails));
+    store = server.connectImap();
+    entity = server.createEntity();
+    entity.setMaxMailCountToFetchOnStartup(mails);
+    // not used by IMAP folder
+    pop3SeenSet = new MailPop3SeenSet(Files.createTempFile("mail-bench", ".uidl"));
+  }
+
+  @TearDown
+  public void tearDown() throws Exception {
+    store.close();
+    server.close();
+  }
+
+  @Benchmark
+  public int readFolder() throws Exception {
+    // fresh store and sync state, so every invocation is initial sync
+    MailFolderReader reader = new MailFolderReader(entity, new MailMetrics(), new MailMessageStore(() -> mails),
+      new ConcurrentHashMap<>(), pop3SeenSet, indexText, ids -> {
+    });
+    try (Folder folder = store.getFolder("INBOX")) {
+      folder.open(Folder.READ_ONLY);
+      return reader.read(folder, "INBOX").newMails().size();
+    }
+  }
+}
@@ -0,0 +1,168 @@
+package org.homio.addon.mail.benchmark;
+
+import jakarta.activation.DataHandler;
+import jakarta.mail.Message;
+import jakarta.mail.MessagingException;
+import jakarta.mail.Part;
+import jakarta.mail.Session;
+import jakarta.mail.internet.InternetAddress;
+import jakarta.mail.internet.MimeBodyPart;
+import jakarta.mail.internet.MimeMessage;
+import jakarta.mail.internet.MimeMultipart;
+import jakarta.mail.util.ByteArrayDataSource;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Deterministic generator of mail contents, so benchmark results are comparable between runs
+ */
+public final class MailCorpus {
+
+  private static final String[] WORDS = {
+    "lorem", "ipsum", "dolor", "sit", "amet", "consectetur", "adipiscing", "elit", "sed", "do", "eiusmod",
+    "tempor", "incididunt", "ut", "labore", "et", "dolore", "magna", "aliqua", "offer", "weekly", "update",
+    "account", "delivery", "invoice", "meeting", "schedule", "report"};
+
+  private MailCorpus() {
+  }
+
+  public static String text(Random random, int words) {
+    StringBuilder builder = new StringBuilder();
+    for (int i = 0; i < words; i++) {
+      if (i > 0) {
+        builder.append(i % 12 == 0 ? "\r\n" : " ");
+      }
+      builder.append(WORDS[random.nextInt(WORDS.length)]);
+    }
+    return builder.toString();
+  }
+
+  /**
+   * Table based html similar to marketing newsletters, with inline images spread across body
+   */
+  public static String newsletterHtml(int size, Collection<String> cids) {
+    Random random = new Random(42);
+    StringBuilder builder = new StringBuilder(size + 1024);
+    builder.append("<html><head><style>td{font-family:Arial;color:#333}</style></head><body>\r\n")
+      .append("<table width=\"600\" cellpadding=\"0\" cellspacing=\"0\" border=\"0\">\r\n");
+    String[] images = cids.toArray(new String[0]);
+    int row = 0;
+    while (builder.length() < size) {
+      builder.append("<tr><td style=\"padding:8px 16px\">");
+      if (images.length > 0 && row % 4 == 0) {
+        builder.append("<img src=\"cid:").append(images[(row / 4) % images.length])
+          .append("\" width=\"568\" alt=\"banner\"><br/>");
+      }
+      builder.append("<p>").append(text(random, 40)).append("<br>").append(text(random, 25)).append("</p>")
+        .append("<a href=\"https://example.com/track?id=").append(row).append("\">Read more</a>")
+        .append("</td></tr>\r\n");
+      row++;
+    }
+    builder.append("</table></body></html>");
+    return builder.toString();
+  }
+
+  /**
+   * Mix of plain, alternative and newsletter mails with attachments, similar to regular inbox
+   */
+  public static List<MimeMessage> inbox(Session session, String to, int count) throws MessagingException {
+    Random random = new Random(7);
+    List<MimeMessage> messages = new ArrayList<>(count);
+    for (int i = 0; i < count; i++) {
+      MimeMessage message = switch (i % 4) {
+        case 0 -> plainMessage(session, to, random, i);
+        case 1, 2 -> alternativeMessage(session, to, random, i, i % 8 == 1);
+        default -> newsletterMessage(session, to, i, 20, 3);
+      };
+      messages.add(message);
+    }
+    return messages;
+  }
+
+  public static MimeMessage plainMessage(Session session, String to, Random random, int index) throws MessagingException {
+    MimeMessage message = createMessage(session, to, "Report " + index + " " + text(random, 5), index);
+    message.setText(text(random, 300), "UTF-8");
+    message.saveChanges();
+    return message;
+  }
+
+  /**
+   * text/plain + text/html alternative, optionally wrapped into multipart/mixed with pdf attachment
+   */
+  public static MimeMessage alternativeMessage(Session session, String to, Random random, int index, boolean withAttachment)
+    throws MessagingException {
+    MimeMessage message = createMessage(session, to, "Meeting " + index + " " + text(random, 5), index);
+    String text = text(random, 400);
+    MimeMultipart alternative = new MimeMultipart("alternative");
+    MimeBodyPart plainPart = new MimeBodyPart();
+    plainPart.setText(text, "UTF-8");
+    alternative.addBodyPart(plainPart);
+    MimeBodyPart htmlPart = new MimeBodyPart();
+    String html = "<html><body><p>" + text.replace("\r\n", "</p><p>") + "</p></body></html>";
+    htmlPart.setContent(html, "text/html; charset=UTF-8");
+    alternative.addBodyPart(htmlPart);
+    if (!withAttachment) {
+      message.setContent(alternative);
+    } else {
+      MimeMultipart mixed = new MimeMultipart("mixed");
+      MimeBodyPart body = new MimeBodyPart();
+      body.setContent(alternative);
+      mixed.addBodyPart(body);
+      MimeBodyPart attachment = new MimeBodyPart();
+      attachment.setDataHandler(new DataHandler(new ByteArrayDataSource(bytes(random, 64 * 1024), "application/pdf")));
+      attachment.setFileName("invoice-" + index + ".pdf");
+      attachment.setDisposition(Part.ATTACHMENT);
+      mixed.addBodyPart(attachment);
+      message.setContent(mixed);
+    }
+    message.saveChanges();
+    return message;
+  }
+
+  /**
+   * multipart/related newsletter with inline images referenced by cid
+   */
+  public static MimeMessage newsletterMessage(Session session, String to, int index, int bodySizeKb, int images)
+    throws MessagingException {
+    Random random = new Random(index);
+    MimeMessage message = createMessage(session, to, "Weekly update " + index, index);
+    List<String> cids = new ArrayList<>();
+    for (int i = 0; i < images; i++) {
+      cids.add("image%d.png@%d.corpus".formatted(i, index));
+    }
+    MimeMultipart related = new MimeMultipart("related");
+    MimeBodyPart htmlPart = new MimeBodyPart();
+    htmlPart.setContent(newsletterHtml(bodySizeKb * 1024, cids), "text/html; charset=UTF-8");
+    related.addBodyPart(htmlPart);
+    for (String cid : cids) {
+      MimeBodyPart imagePart = new MimeBodyPart();
+      imagePart.setDataHandler(new DataHandler(new ByteArrayDataSource(bytes(random, 16 * 1024), "image/png")));
+      imagePart.setContentID("<" + cid + ">");
+      imagePart.setDisposition(Part.INLINE);
+      related.addBodyPart(imagePart);
+    }
+    message.setContent(related);
+    message.saveChanges();
+    return message;
+  }
+
+  private static MimeMessage createMessage(Session session, String to, String subject, int index) throws MessagingException {
+    MimeMessage message = new MimeMessage(session);
+    message.setFrom(new InternetAddress("sender" + (index % 10) + "@corpus.local"));
+    message.setRecipient(Message.RecipientType.TO, new InternetAddress(to));
+    message.setSubject(subject, "UTF-8");
+    // fixed dates keep mail order equal between runs
+    message.setSentDate(new Date(1_700_000_000_000L + index * 60_000L));
+    return message;
+  }
+
+  private static byte[] bytes(Random random, int size) {
+    byte[] bytes = new byte[size];
+    random.nextBytes(bytes);
+    return bytes;
+  }
+}
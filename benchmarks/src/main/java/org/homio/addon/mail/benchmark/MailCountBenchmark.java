@@ -0,0 +1,92 @@
+package org.homio.addon.mail.benchmark;
+
+import jakarta.mail.Flags;
+import jakarta.mail.Folder;
+import jakarta.mail.Message;
+import jakarta.mail.Store;
+import jakarta.mail.search.FlagTerm;
+import org.eclipse.angus.mail.imap.IMAPFolder;
+import org.eclipse.angus.mail.imap.protocol.Status;
+import org.homio.addon.mail.MailFolderCounters;
+import org.homio.addon.mail.MailService.MailCountFilter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Unread count of folder with half of mails read: SELECT + SEARCH UNSEEN (former getMailCount), single STATUS
+ * and counters served from memory
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MailCountBenchmark {
+
+  @Param({"1000"})
+  public int mails;
+
+  private MailServerStub server;
+  private Store store;
+  private MailFolderCounters counters;
+
+  @Setup
+  public void setup() throws Exception {
+    server = new MailServerStub();
+    server.deliver(MailCorpus.inbox(server.clientSession(), MailServerStub.USER, mails));
+    store = server.connectImap();
+    try (Folder folder = store.getFolder("INBOX")) {
+      folder.open(Folder.READ_WRITE);
+      Message[] messages = folder.getMessages();
+      Message[] read = Arrays.stream(messages).filter(message -> message.getMessageNumber() % 2 == 0).toArray(Message[]::new);
+      folder.setFlags(read, new Flags(Flags.Flag.SEEN), true);
+    }
+    counters = new MailFolderCounters();
+    counters.update("INBOX", mails, status().unseen, 0);
+  }
+
+  @TearDown
+  public void tearDown() throws Exception {
+    store.close();
+    server.close();
+  }
+
+  @Benchmark
+  public int searchUnseen() throws Exception {
+    try (Folder folder = store.getFolder("INBOX")) {
+      folder.open(Folder.READ_ONLY);
+      return folder.search(new FlagTerm(new Flags(Flags.Flag.SEEN), false)).length;
+    }
+  }
+
+  @Benchmark
+  public int statusUnseen() throws Exception {
+    return status().unseen;
+  }
+
+  @Benchmark
+  public Integer cachedCounter() {
+    return counters.get("INBOX", MailCountFilter.unread, Duration.ofMinutes(1));
+  }
+
+  private Status status() throws Exception {
+    IMAPFolder folder = (IMAPFolder) store.getFolder("INBOX");
+    return (Status) folder.doCommand(protocol ->
+      protocol.status(folder.getFullName(), new String[]{"MESSAGES", "UNSEEN", "RECENT"}));
+  }
+}
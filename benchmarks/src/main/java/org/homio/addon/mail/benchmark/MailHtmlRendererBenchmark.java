@@ -0,0 +1,69 @@
+package org.homio.addon.mail.benchmark;
+
+import org.homio.addon.mail.MailHtmlRenderer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Rendering of newsletter-like html body with inline images: single-pass renderer and resolving of cid links to
+ * part urls vs former 'replaceAll per image' approach
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MailHtmlRendererBenchmark {
+
+  @Param({"200"})
+  public int bodySizeKb;
+
+  @Param({"30"})
+  public int images;
+
+  private String html;
+  private Map<String, String> inlineImages;
+
+  @Setup
+  public void setup() {
+    inlineImages = new LinkedHashMap<>();
+    for (int i = 0; i < images; i++) {
+      inlineImages.put("image%d.png@01D9A3C1.5F2B4E70".formatted(i), "iVBORw0KGgoAAAANSUhEUgAAAAEAAAABCAYAAAAfFcSJAAAADUlEQVR42mNk");
+    }
+    html = MailCorpus.newsletterHtml(bodySizeKb * 1024, inlineImages.keySet());
+  }
+
+  @Benchmark
+  public String singlePass() {
+    return MailHtmlRenderer.render(html, false);
+  }
+
+  @Benchmark
+  public String resolveCidLinks() {
+    return MailHtmlRenderer.resolveCidLinks(html,
+      cid -> inlineImages.containsKey(cid) ? "/rest/mail/mail_1/attachment?id=INBOX/1/1&section=2" : null);
+  }
+
+  @Benchmark
+  public String replaceAllPerImage() {
+    String text = html.replaceAll("(?i)<br\\s*/?>", "");
+    for (Map.Entry<String, String> entry : inlineImages.entrySet()) {
+      text = text.replaceAll("cid:" + entry.getKey(), "data:image/jpeg;base64," + entry.getValue());
+    }
+    return text;
+  }
+}
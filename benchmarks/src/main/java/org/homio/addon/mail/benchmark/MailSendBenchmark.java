@@ -0,0 +1,86 @@
+package org.homio.addon.mail.benchmark;
+
+import jakarta.mail.MessagingException;
+import jakarta.mail.Transport;
+import jakarta.mail.internet.MimeMessage;
+import org.homio.addon.mail.MailEntity;
+import org.homio.addon.mail.MailMetrics;
+import org.homio.addon.mail.MailTransportPool;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Burst of mails sent over pooled SMTP connection vs connection per mail (Transport.send)
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MailSendBenchmark {
+
+  @Param({"20"})
+  public int burst;
+
+  private MailServerStub server;
+  private MailEntity entity;
+  private MailTransportPool transportPool;
+  private List<MimeMessage> messages;
+
+  @Setup
+  public void setup() throws Exception {
+    server = new MailServerStub();
+    entity = server.createEntity();
+    transportPool = new MailTransportPool(entity, new MailMetrics());
+    Random random = new Random(3);
+    messages = new ArrayList<>(burst);
+    for (int i = 0; i < burst; i++) {
+      messages.add(MailCorpus.plainMessage(transportPool.getSession(), MailServerStub.USER, random, i));
+    }
+  }
+
+  /**
+   * Received mails are kept in server memory
+   */
+  @TearDown(Level.Iteration)
+  public void purge() throws Exception {
+    server.purge();
+  }
+
+  @TearDown
+  public void tearDown() {
+    transportPool.close();
+    server.close();
+  }
+
+  @Benchmark
+  public long pooledBurst() {
+    return transportPool.send(messages).stream().filter(Objects::nonNull).count();
+  }
+
+  @Benchmark
+  public int connectionPerMail() throws MessagingException {
+    for (MimeMessage message : messages) {
+      Transport.send(message, entity.getSmtpUser(), entity.getSmtpPassword().asString());
+    }
+    return messages.size();
+  }
+}
@@ -0,0 +1,75 @@
+package org.homio.addon.mail.benchmark;
+
+import com.icegreen.greenmail.store.FolderException;
+import com.icegreen.greenmail.user.GreenMailUser;
+import com.icegreen.greenmail.util.GreenMail;
+import com.icegreen.greenmail.util.ServerSetup;
+import com.icegreen.greenmail.util.ServerSetupTest;
+import jakarta.mail.MessagingException;
+import jakarta.mail.Session;
+import jakarta.mail.Store;
+import jakarta.mail.internet.MimeMessage;
+import org.homio.addon.mail.MailEntity;
+
+import java.util.Collection;
+import java.util.Properties;
+
+/**
+ * In-process SMTP and IMAP server on loopback with random ports, so benchmarks need no network or real account
+ */
+public final class MailServerStub implements AutoCloseable {
+
+  public static final String USER = "bench@localhost";
+  private static final String PASSWORD = "bench";
+
+  private final GreenMail greenMail;
+  private final GreenMailUser user;
+
+  public MailServerStub() {
+    greenMail = new GreenMail(ServerSetup.dynamicPort(ServerSetupTest.SMTP_IMAP));
+    greenMail.start();
+    user = greenMail.setUser(USER, USER, PASSWORD);
+  }
+
+  public void deliver(Collection<MimeMessage> messages) {
+    messages.forEach(user::deliver);
+  }
+
+  public void purge() throws FolderException {
+    greenMail.purgeEmailFromAllMailboxes();
+  }
+
+  public Session clientSession() {
+    Properties props = new Properties();
+    // same provider as addon uses, even if other jakarta.mail implementation is on classpath
+    props.put("mail.imap.class", "org.eclipse.angus.mail.imap.IMAPStore");
+    props.put("mail.imap.host", "127.0.0.1");
+    props.put("mail.imap.port", String.valueOf(greenMail.getImap().getPort()));
+    return Session.getInstance(props);
+  }
+
+  public Store connectImap() throws MessagingException {
+    Store store = clientSession().getStore("imap");
+    store.connect(USER, PASSWORD);
+    return store;
+  }
+
+  /**
+   * Mail entity that sends mails to this server
+   */
+  public MailEntity createEntity() {
+    MailEntity entity = new MailEntity();
+    entity.setSmtpHostname("127.0.0.1");
+    entity.setSmtpPort(greenMail.getSmtp().getPort());
+    entity.setSmtpSecurity(MailEntity.Security.PLAIN);
+    entity.setSmtpUser(USER);
+    entity.setSmtpPassword(PASSWORD);
+    entity.setSender(USER);
+    return entity;
+  }
+
+  @Override
+  public void close() {
+    greenMail.stop();
+  }
+}
@@ -0,0 +1,128 @@
+package org.homio.addon.mail;
+
+import com.pivovarit.function.ThrowingConsumer;
+import lombok.extern.log4j.Log4j2;
+import org.homio.api.util.CommonUtils;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.LongSupplier;
+import java.util.stream.Stream;
+
+/**
+ * Local copy of downloaded attachments, so range requests (i.e. video seeking or resumed download) are served from
+ * disk instead of fetching part from mail server again. Least recently used files are removed to fit size budget.
+ */
+@Log4j2
+public class MailAttachmentCache {
+
+  private final Path directory;
+  private final LongSupplier maxSize;
+  private final Map<String, Object> downloadLocks = new ConcurrentHashMap<>();
+  // total size of cached files measured by last eviction
+  private volatile long size;
+
+  public MailAttachmentCache(@NotNull String entityID, @NotNull LongSupplier maxSize) {
+    this.directory = CommonUtils.getFilesPath().resolve("mail").resolve("attachments").resolve(entityID);
+    this.maxSize = maxSize;
+  }
+
+  public boolean isEnabled() {
+    return maxSize.getAsLong() > 0;
+  }
+
+  public long getSize() {
+    return size;
+  }
+
+  /**
+   * @param downloader writes attachment content, called only if attachment isn't cached yet
+   * @return cached file
+   */
+  public @NotNull Path get(@NotNull String id, @NotNull String section,
+                           @NotNull ThrowingConsumer<OutputStream, Exception> downloader) throws Exception {
+    String key = toKey(id, section);
+    Path file = directory.resolve(key);
+    // parallel range requests of same attachment wait for single download
+    synchronized (downloadLocks.computeIfAbsent(key, k -> new Object())) {
+      try {
+        if (Files.exists(file)) {
+          Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis()));
+          return file;
+        }
+        Files.createDirectories(directory);
+        Path tmpFile = Files.createTempFile(directory, key, ".tmp");
+        try (OutputStream outputStream = Files.newOutputStream(tmpFile)) {
+          downloader.accept(outputStream);
+        } catch (Exception ex) {
+          MailAttachments.delete(tmpFile);
+          throw ex;
+        }
+        Files.move(tmpFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      } finally {
+        downloadLocks.remove(key);
+      }
+    }
+    evict(file);
+    return file;
+  }
+
+  private void evict(@Nullable Path keep) {
+    if (!Files.isDirectory(directory)) {
+      return;
+    }
+    List<Path> files = new ArrayList<>();
+    long totalSize = 0;
+    try (Stream<Path> stream = Files.list(directory)) {
+      for (Path file : stream.filter(path -> !path.toString().endsWith(".tmp")).toList()) {
+        files.add(file);
+        totalSize += Files.size(file);
+      }
+      files.sort(Comparator.comparing(MailAttachmentCache::getLastModified));
+      for (Path file : files) {
+        if (totalSize <= maxSize.getAsLong()) {
+          break;
+        }
+        if (!file.equals(keep)) {
+          totalSize -= Files.size(file);
+          MailAttachments.delete(file);
+        }
+      }
+      size = totalSize;
+    } catch (IOException ex) {
+      log.warn("Unable to cleanup attachment cache {}: {}", directory, ex.getMessage());
+    }
+  }
+
+  private static FileTime getLastModified(Path file) {
+    try {
+      return Files.getLastModifiedTime(file);
+    } catch (IOException ex) {
+      return FileTime.fromMillis(0);
+    }
+  }
+
+  private static String toKey(String id, String section) {
+    try {
+      MessageDigest digest = MessageDigest.getInstance("SHA-256");
+      byte[] hash = digest.digest((id + "/" + section).getBytes(StandardCharsets.UTF_8));
+      return HexFormat.of().formatHex(hash, 0, 16);
+    } catch (Exception ex) {
+      throw new IllegalStateException(ex);
+    }
+  }
+}
@@ -0,0 +1,121 @@
+package org.homio.addon.mail;
+
+import jakarta.servlet.http.HttpServletResponse;
+import lombok.RequiredArgsConstructor;
+import org.homio.api.Context;
+import org.jetbrains.annotations.Nullable;
+import org.springframework.http.ContentDisposition;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpRange;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.RequestHeader;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * Download single attachment or inline image of mail by IMAP section number. Without attachment cache part is streamed from mail
+ * server to client as is. With cache part is stored on disk once and served with HTTP range support.
+ * Requests are authorized by signature of url issued by MailDownloadLinks.
+ */
+@RestController
+@RequestMapping("/rest/mail")
+@RequiredArgsConstructor
+public class MailAttachmentController {
+
+  private final Context context;
+
+  @GetMapping("/{entityID}/attachment")
+  public void getAttachment(
+    @PathVariable("entityID") String entityID,
+    @RequestParam("id") String id,
+    @RequestParam("section") String section,
+    @RequestParam("expires") long expires,
+    @RequestParam("sig") String signature,
+    @RequestHeader(value = HttpHeaders.RANGE, required = false) @Nullable String range,
+    HttpServletResponse response) throws Exception {
+    if (!MailDownloadLinks.verify(entityID, id, section, expires, signature)) {
+      response.sendError(HttpServletResponse.SC_FORBIDDEN);
+      return;
+    }
+    MailEntity entity = context.db().get(entityID);
+    MailMimeTree.MimeNode part = entity == null ? null : entity.getService().getAttachmentPart(id, section);
+    if (part == null) {
+      response.sendError(HttpServletResponse.SC_NOT_FOUND);
+      return;
+    }
+    MailService service = entity.getService();
+    response.setContentType(part.contentType());
+    // inline images are loaded by img tags of mail body, attachments are saved as files
+    ContentDisposition.Builder disposition = part.kind() == MailMimeTree.Kind.inline
+      ? ContentDisposition.inline() : ContentDisposition.attachment();
+    response.setHeader(HttpHeaders.CONTENT_DISPOSITION, disposition
+      .filename(Objects.toString(part.fileName(), "attachment"), StandardCharsets.UTF_8).build().toString());
+
+    Path file = service.getCachedAttachment(id, section);
+    if (file == null) {
+      // decoded size isn't known before whole part is read, so ranges are ignored
+      response.setHeader(HttpHeaders.ACCEPT_RANGES, "none");
+      service.writeAttachment(id, section, response.getOutputStream());
+      return;
+    }
+    response.setHeader(HttpHeaders.ACCEPT_RANGES, "bytes");
+    long size = Files.size(file);
+    List<HttpRange> ranges = parseRanges(range);
+    if (ranges.size() != 1) {
+      // multipart/byteranges responses are not supported, whole file is returned instead
+      response.setContentLengthLong(size);
+      Files.copy(file, response.getOutputStream());
+      return;
+    }
+    long start = ranges.get(0).getRangeStart(size);
+    long end = ranges.get(0).getRangeEnd(size);
+    if (start >= size) {
+      response.setHeader(HttpHeaders.CONTENT_RANGE, "bytes */" + size);
+      response.sendError(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+      return;
+    }
+    response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+    response.setHeader(HttpHeaders.CONTENT_RANGE, "bytes %d-%d/%d".formatted(start, end, size));
+    response.setContentLengthLong(end - start + 1);
+    try (SeekableByteChannel channel = Files.newByteChannel(file);
+         InputStream stream = Channels.newInputStream(channel.position(start))) {
+      copy(stream, response.getOutputStream(), end - start + 1);
+    }
+  }
+
+  /**
+   * Malformed Range header is ignored and whole file is returned, as RFC 9110 allows
+   */
+  private static List<HttpRange> parseRanges(@Nullable String range) {
+    if (range == null) {
+      return List.of();
+    }
+    try {
+      return HttpRange.parseRanges(range);
+    } catch (IllegalArgumentException ex) {
+      return List.of();
+    }
+  }
+
+  private static void copy(InputStream stream, OutputStream outputStream, long length) throws Exception {
+    byte[] buffer = new byte[64 * 1024];
+    long remaining = length;
+    int read;
+    while (remaining > 0 && (read = stream.read(buffer, 0, (int) Math.min(buffer.length, remaining))) > 0) {
+      outputStream.write(buffer, 0, read);
+      remaining -= read;
+    }
+  }
+}
@@ -0,0 +1,155 @@
+package org.homio.addon.mail;
+
+import jakarta.activation.DataSource;
+import jakarta.activation.FileTypeMap;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.log4j.Log4j2;
+import org.homio.api.util.CommonUtils;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Stream;
+
+/**
+ * Temp files and data sources of outgoing mail attachments. Attachments are streamed from disk while sending,
+ * so big files never reside in heap.
+ */
+@Log4j2
+public final class MailAttachments {
+
+  public static final long MAX_ATTACHMENT_SIZE = 25 * 1024 * 1024;
+  // smaller attachments are kept in memory, bigger are spooled to temp file
+  public static final int MEMORY_THRESHOLD = 256 * 1024;
+
+  private static final int URL_TIMEOUT_MS = 30000;
+  private static final AtomicBoolean TEMP_PATH_CLEANED = new AtomicBoolean();
+
+  private MailAttachments() {
+  }
+
+  public static @NotNull Path createTempFile(@NotNull String prefix) throws IOException {
+    Path tempPath = getTempPath();
+    Files.createDirectories(tempPath);
+    return Files.createTempFile(tempPath, prefix, ".tmp");
+  }
+
+  /**
+   * Copy stream to temp file
+   *
+   * @throws IOException if stream is bigger than MAX_ATTACHMENT_SIZE
+   */
+  public static @NotNull Path spool(@NotNull String prefix, @NotNull InputStream stream) throws IOException {
+    Path file = createTempFile(prefix);
+    try (InputStream limited = limit(stream, file.getFileName().toString())) {
+      Files.copy(limited, file, java.nio.file.StandardCopyOption.REPLACE_EXISTING);
+      return file;
+    } catch (IOException ex) {
+      delete(file);
+      throw ex;
+    }
+  }
+
+  public static void delete(@NotNull Path file) {
+    try {
+      Files.deleteIfExists(file);
+    } catch (IOException ex) {
+      log.warn("Unable to delete mail temp file {}: {}", file, ex.getMessage());
+    }
+  }
+
+  /**
+   * Remove temp files left after crash or restart. Temp directory is private to addon and shared by all mail
+   * entities, so it's cleaned whole once per start, before first entity creates own files
+   */
+  public static void deleteTempFiles() {
+    Path tempPath = getTempPath();
+    if (!TEMP_PATH_CLEANED.compareAndSet(false, true) || !Files.isDirectory(tempPath)) {
+      return;
+    }
+    try (Stream<Path> files = Files.list(tempPath)) {
+      files.forEach(MailAttachments::delete);
+    } catch (IOException ex) {
+      log.warn("Unable to cleanup mail temp files: {}", ex.getMessage());
+    }
+  }
+
+  public static @NotNull InputStream limit(@NotNull InputStream stream, @NotNull String name) {
+    return new FilterInputStream(stream) {
+      private long remaining = MAX_ATTACHMENT_SIZE;
+
+      @Override
+      public int read() throws IOException {
+        int value = super.read();
+        if (value >= 0) {
+          consume(1);
+        }
+        return value;
+      }
+
+      @Override
+      public int read(byte @NotNull [] buffer, int offset, int length) throws IOException {
+        int count = super.read(buffer, offset, length);
+        if (count > 0) {
+          consume(count);
+        }
+        return count;
+      }
+
+      private void consume(int count) throws IOException {
+        remaining -= count;
+        if (remaining < 0) {
+          throw new IOException("Attachment '%s' exceeds max size of %d MB".formatted(name, MAX_ATTACHMENT_SIZE / 1024 / 1024));
+        }
+      }
+    };
+  }
+
+  private static Path getTempPath() {
+    return CommonUtils.getFilesPath().resolve("mail").resolve("tmp");
+  }
+
+  /**
+   * Downloads URL lazily while mail is written, with connect/read timeouts and attachment size limit
+   */
+  @RequiredArgsConstructor
+  public static class BoundedURLDataSource implements DataSource {
+
+    private final URL url;
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+      URLConnection connection = url.openConnection();
+      connection.setConnectTimeout(URL_TIMEOUT_MS);
+      connection.setReadTimeout(URL_TIMEOUT_MS);
+      long length = connection.getContentLengthLong();
+      if (length > MAX_ATTACHMENT_SIZE) {
+        throw new IOException("Attachment '%s' exceeds max size of %d MB".formatted(url, MAX_ATTACHMENT_SIZE / 1024 / 1024));
+      }
+      return limit(connection.getInputStream(), url.toString());
+    }
+
+    @Override
+    public OutputStream getOutputStream() throws IOException {
+      throw new IOException("URL attachment is read only");
+    }
+
+    @Override
+    public String getContentType() {
+      return FileTypeMap.getDefaultFileTypeMap().getContentType(getName());
+    }
+
+    @Override
+    public String getName() {
+      String path = url.getPath();
+      return path.substring(path.lastIndexOf('/') + 1);
+    }
+  }
+}
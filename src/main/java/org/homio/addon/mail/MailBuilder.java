@@ -4,11 +4,9 @@ import jakarta.activation.DataHandler;
 import jakarta.activation.DataSource;
 import jakarta.activation.FileDataSource;
 import jakarta.mail.Address;
-import jakarta.mail.Authenticator;
 import jakarta.mail.Message;
-import jakarta.mail.PasswordAuthentication;
+import jakarta.mail.MessagingException;
 import jakarta.mail.Session;
-import jakarta.mail.Transport;
 import jakarta.mail.internet.AddressException;
 import jakarta.mail.internet.InternetAddress;
 import jakarta.mail.internet.MimeBodyPart;
@@ -18,15 +16,20 @@ import jakarta.mail.util.ByteArrayDataSource;
 import lombok.SneakyThrows;
 import lombok.extern.log4j.Log4j2;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
 
 @Log4j2
 public class MailBuilder {
@@ -35,6 +38,8 @@ public class MailBuilder {
   private final List<InternetAddress> recipients = new ArrayList<>();
   private final List<URL> attachmentURLs = new ArrayList<>();
   private final Map<String, DataSource> attachmentFiles = new HashMap<>();
+  // temp files owned by this mail, removed once mail is sent or failed
+  private final List<Path> tempFiles = new ArrayList<>();
   private final String subject;
   private final String html;
 
@@ -49,8 +54,27 @@ public class MailBuilder {
     attachmentURLs.add(new URL(urlString));
   }
 
-  public void withFileAttachment(String name, byte[] contents) {
-    attachmentFiles.put(name, new ByteArrayDataSource(contents, "application/octet-stream"));
+  public void withFileAttachment(String name, byte[] contents) throws IOException {
+    if (contents.length > MailAttachments.MEMORY_THRESHOLD) {
+      withFileAttachment(name, new ByteArrayInputStream(contents));
+    } else {
+      attachmentFiles.put(name, new ByteArrayDataSource(contents, "application/octet-stream"));
+    }
+  }
+
+  /**
+   * Stream contents to temp file, so attachment is not held in memory until mail is sent
+   */
+  public void withFileAttachment(String name, InputStream contents) throws IOException {
+    withTempFileAttachment(name, MailAttachments.spool("mail_attachment_", contents));
+  }
+
+  /**
+   * Attach temp file which is deleted after sending
+   */
+  public void withTempFileAttachment(String name, Path file) {
+    tempFiles.add(file);
+    attachmentFiles.put(name, new FileDataSource(file.toFile()));
   }
 
   public void withFileAttachment(String path) {
@@ -58,16 +82,28 @@ public class MailBuilder {
     attachmentFiles.put(file.getName(), new FileDataSource(file));
   }
 
+  /**
+   * Put mail to outbox of mail entity. Sending is done in background
+   *
+   * @return future completed with Message-ID once mail is accepted by SMTP server
+   */
   @SneakyThrows
-  public void sendMail() {
-    var props = mailEntity.getSmtpSecurity().prepareMail(mailEntity);
-    Session session = Session.getInstance(props, new Authenticator() {
-      protected PasswordAuthentication getPasswordAuthentication() {
-        return new PasswordAuthentication(mailEntity.getSmtpUser(), mailEntity.getSmtpPassword().asString());
-      }
-    });
-
-    Message message = new MimeMessage(session);
+  public CompletableFuture<String> sendMail() {
+    try {
+      return mailEntity.getService().getOutbox().enqueue(this::buildMessage)
+        .whenComplete((messageID, ex) -> deleteTempFiles());
+    } catch (Exception ex) {
+      deleteTempFiles();
+      throw ex;
+    }
+  }
+
+  private void deleteTempFiles() {
+    tempFiles.forEach(MailAttachments::delete);
+  }
+
+  private MimeMessage buildMessage(Session session) throws MessagingException {
+    MimeMessage message = new MimeMessage(session);
     message.setFrom(new InternetAddress(mailEntity.getSender()));
     message.setRecipients(Message.RecipientType.TO, recipients.toArray(new Address[0]));
     message.setSubject(subject);
@@ -87,14 +123,12 @@ public class MailBuilder {
 
     for (URL url : attachmentURLs) {
       MimeBodyPart urlPart = new MimeBodyPart();
-      urlPart.setDataHandler(new DataHandler(url));
+      urlPart.setDataHandler(new DataHandler(new MailAttachments.BoundedURLDataSource(url)));
       urlPart.setFileName(url.getPath());
       multipart.addBodyPart(urlPart);
     }
 
     message.setContent(multipart);
-
-    Transport.send(message);
-    log.info("Email sent successfully!");
+    return message;
   }
-}
\ No newline at end of file
+}
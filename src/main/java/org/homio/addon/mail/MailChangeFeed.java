@@ -0,0 +1,129 @@
+package org.homio.addon.mail;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Versioned log of mail changes per folder. Every add, remove or flag change bumps folder version, so widget
+ * that already has version N receives only mails changed after N, or nothing if version didn't move.
+ */
+public class MailChangeFeed {
+
+  // widgets that are behind more than this number of changes reload whole page
+  private static final int MAX_CHANGES = 2000;
+
+  private final Map<String, FolderFeed> folders = new ConcurrentHashMap<>();
+
+  public void added(@NotNull String folder, @NotNull String id) {
+    getFeed(folder).record(id, ChangeType.added);
+  }
+
+  public void removed(@NotNull String folder, @NotNull String id) {
+    getFeed(folder).record(id, ChangeType.removed);
+  }
+
+  public void changed(@NotNull String folder, @NotNull String id) {
+    getFeed(folder).record(id, ChangeType.changed);
+  }
+
+  public long getVersion(@NotNull String folder) {
+    FolderFeed feed = folders.get(folder);
+    return feed == null ? 0 : feed.getVersion();
+  }
+
+  /**
+   * @return merged changes after given version, or null if changes are not available anymore
+   */
+  public @Nullable Diff changesSince(@NotNull String folder, long version) {
+    FolderFeed feed = folders.get(folder);
+    return feed == null ? new Diff(0, Set.of(), Set.of(), Set.of()) : feed.changesSince(version);
+  }
+
+  private FolderFeed getFeed(String folder) {
+    return folders.computeIfAbsent(folder, f -> new FolderFeed());
+  }
+
+  public enum ChangeType {
+    added, removed, changed
+  }
+
+  /**
+   * @param version last version included in this diff
+   * @param added   ids of new mails
+   * @param removed ids of deleted mails
+   * @param changed ids of mails with changed flags
+   */
+  public record Diff(long version, Set<String> added, Set<String> removed, Set<String> changed) {
+
+    public boolean isEmpty() {
+      return added.isEmpty() && removed.isEmpty() && changed.isEmpty();
+    }
+  }
+
+  private record Change(long version, String id, ChangeType type) {
+  }
+
+  private static final class FolderFeed {
+    private final Deque<Change> changes = new ArrayDeque<>();
+    private long version;
+    private long oldestVersion = 1;
+
+    private synchronized void record(String id, ChangeType type) {
+      changes.addLast(new Change(++version, id, type));
+      if (changes.size() > MAX_CHANGES) {
+        oldestVersion = changes.removeFirst().version + 1;
+      }
+    }
+
+    private synchronized long getVersion() {
+      return version;
+    }
+
+    private synchronized @Nullable Diff changesSince(long since) {
+      if (since + 1 < oldestVersion || since > version) {
+        return null;
+      }
+      Set<String> added = new LinkedHashSet<>();
+      Set<String> removed = new LinkedHashSet<>();
+      Set<String> changed = new LinkedHashSet<>();
+      Iterator<Change> iterator = changes.descendingIterator();
+      Deque<Change> newer = new ArrayDeque<>();
+      while (iterator.hasNext()) {
+        Change change = iterator.next();
+        if (change.version <= since) {
+          break;
+        }
+        newer.addFirst(change);
+      }
+      for (Change change : newer) {
+        switch (change.type) {
+          case added -> {
+            removed.remove(change.id);
+            added.add(change.id);
+          }
+          case removed -> {
+            changed.remove(change.id);
+            // mail that appeared and disappeared between versions is unknown to widget
+            if (!added.remove(change.id)) {
+              removed.add(change.id);
+            }
+          }
+          case changed -> {
+            if (!added.contains(change.id)) {
+              changed.add(change.id);
+            }
+          }
+        }
+      }
+      return new Diff(version, added, removed, changed);
+    }
+  }
+}
@@ -0,0 +1,234 @@
+package org.homio.addon.mail;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import lombok.extern.log4j.Log4j2;
+import org.homio.addon.mail.MailService.MessageWrapper;
+import org.homio.api.util.CommonUtils;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.homio.api.util.JsonUtils.OBJECT_MAPPER;
+
+/**
+ * Append-only local copy of synced mails and folder sync states, so service restart renders mails immediately
+ * and only fetches delta from server. File is compacted from in-memory state once it grows over the limit.
+ * Mails are bound to folder UIDVALIDITY and dropped on load if server reassigned UIDs.
+ */
+@Log4j2
+public class MailDiskCache {
+
+  private static final long MAX_CACHE_SIZE = 64 * 1024 * 1024;
+  // bodies of the oldest mails are dropped on compaction to fit into this budget
+  private static final long MAX_BODIES_SIZE = MAX_CACHE_SIZE / 2;
+
+  private final Path file;
+
+  public MailDiskCache(@NotNull String entityID) {
+    this(CommonUtils.getFilesPath().resolve("mail"), entityID);
+  }
+
+  MailDiskCache(@NotNull Path directory, @NotNull String entityID) {
+    this.file = directory.resolve(entityID + ".jsonl");
+  }
+
+  public synchronized @NotNull Content load() {
+    Map<String, FolderState> states = new HashMap<>();
+    Map<String, Map<String, CachedMail>> folders = new HashMap<>();
+    if (Files.exists(file)) {
+      try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+        String line;
+        while ((line = reader.readLine()) != null) {
+          if (!line.isBlank()) {
+            replay(OBJECT_MAPPER.readValue(line, Entry.class), states, folders);
+          }
+        }
+      } catch (Exception ex) {
+        // partially written last line after crash is fine, everything before it is already replayed
+        log.warn("Unable to fully read mail cache {}: {}", file, ex.getMessage());
+      }
+    }
+    List<MessageWrapper> messages = new ArrayList<>();
+    folders.forEach((folder, mails) -> {
+      FolderState state = states.get(folder);
+      for (CachedMail mail : mails.values()) {
+        if (state != null && state.uidValidity == mail.uidValidity) {
+          messages.add(mail.toMessage());
+        }
+      }
+    });
+    return new Content(states, messages);
+  }
+
+  public void writeFolder(@NotNull String folder, @NotNull FolderState state, @NotNull Collection<MessageWrapper> messages) {
+    List<Entry> entries = new ArrayList<>(messages.size() + 1);
+    entries.add(Entry.state(folder, state));
+    for (MessageWrapper message : messages) {
+      entries.add(Entry.mail(CachedMail.of(message, state.uidValidity, true)));
+    }
+    append(entries);
+  }
+
+  public void writeMail(@NotNull MessageWrapper message, long uidValidity) {
+    append(List.of(Entry.mail(CachedMail.of(message, uidValidity, true))));
+  }
+
+  public void writeDelete(@NotNull String folder, @NotNull String id) {
+    append(List.of(new Entry("delete", folder, null, null, id, null)));
+  }
+
+  public void writeSeen(@NotNull String folder, @NotNull Collection<String> ids, boolean seen) {
+    append(ids.stream().map(id -> new Entry("seen", folder, null, null, id, seen)).toList());
+  }
+
+  public synchronized boolean requireCompaction() {
+    try {
+      return Files.exists(file) && Files.size(file) > MAX_CACHE_SIZE;
+    } catch (IOException ex) {
+      return false;
+    }
+  }
+
+  /**
+   * Rewrite cache with current in-memory state. Newest mails keep bodies while budget allows
+   */
+  public synchronized void compact(@NotNull Map<String, FolderState> states, @NotNull MailMessageStore messageStore) {
+    Path tmpFile = file.resolveSibling(file.getFileName() + ".tmp");
+    long bodiesSize = 0;
+    try (BufferedWriter writer = Files.newBufferedWriter(tmpFile, StandardCharsets.UTF_8)) {
+      for (Map.Entry<String, FolderState> stateEntry : states.entrySet()) {
+        String folder = stateEntry.getKey();
+        FolderState state = stateEntry.getValue();
+        writeLine(writer, Entry.state(folder, state));
+        for (MessageWrapper message : messageStore.getFolderMessages(folder)) {
+          long bodySize = message.getFullBody() == null ? 0 : message.getFullBody().length();
+          boolean withBody = bodiesSize + bodySize <= MAX_BODIES_SIZE;
+          if (withBody) {
+            bodiesSize += bodySize;
+          }
+          writeLine(writer, Entry.mail(CachedMail.of(message, state.uidValidity, withBody)));
+        }
+      }
+    } catch (IOException ex) {
+      log.error("Unable to compact mail cache {}", file, ex);
+      return;
+    }
+    try {
+      Files.move(tmpFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } catch (IOException ex) {
+      log.error("Unable to replace mail cache {}", file, ex);
+    }
+  }
+
+  private synchronized void append(List<Entry> entries) {
+    try {
+      Files.createDirectories(file.getParent());
+      try (BufferedWriter writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8,
+        StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
+        for (Entry entry : entries) {
+          writeLine(writer, entry);
+        }
+      }
+    } catch (IOException ex) {
+      log.error("Unable to write mail cache {}", file, ex);
+    }
+  }
+
+  private static void writeLine(BufferedWriter writer, Entry entry) throws IOException {
+    writer.write(OBJECT_MAPPER.writeValueAsString(entry));
+    writer.newLine();
+  }
+
+  private static void replay(Entry entry, Map<String, FolderState> states, Map<String, Map<String, CachedMail>> folders) {
+    switch (entry.type) {
+      case "state" -> {
+        FolderState existed = states.put(entry.folder, entry.state);
+        if (existed != null && existed.uidValidity != entry.state.uidValidity) {
+          folders.remove(entry.folder);
+        }
+      }
+      case "mail" -> folders.computeIfAbsent(entry.folder, f -> new LinkedHashMap<>()).put(entry.mail.id, entry.mail);
+      case "seen" -> {
+        Map<String, CachedMail> mails = folders.get(entry.folder);
+        CachedMail mail = mails == null ? null : mails.get(entry.id);
+        if (mail != null) {
+          mails.put(entry.id, mail.withSeen(Boolean.TRUE.equals(entry.seen)));
+        }
+      }
+      case "delete" -> {
+        Map<String, CachedMail> mails = folders.get(entry.folder);
+        if (mails != null) {
+          mails.remove(entry.id);
+        }
+      }
+      default -> log.warn("Unknown mail cache entry type: {}", entry.type);
+    }
+  }
+
+  public record Content(Map<String, FolderState> states, List<MessageWrapper> messages) {
+  }
+
+  public record FolderState(long uidValidity, long lastUID, long lastChecked) {
+  }
+
+  @JsonInclude(JsonInclude.Include.NON_NULL)
+  record Entry(String type, String folder, @Nullable FolderState state, @Nullable CachedMail mail, @Nullable String id,
+               @Nullable Boolean seen) {
+
+    private static Entry state(String folder, FolderState state) {
+      return new Entry("state", folder, state, null, null, null);
+    }
+
+    private static Entry mail(CachedMail mail) {
+      return new Entry("mail", mail.folder, null, mail, null, null);
+    }
+  }
+
+  @JsonInclude(JsonInclude.Include.NON_NULL)
+  record CachedMail(String id, String subject, String folder, String sender, String description, int num,
+                    long uid, long uidValidity, Date receivedDate, int size, boolean seen, Set<String> attachments,
+                    String preview, String fullBody, boolean asPlainText, Map<String, MailService.InlineImage> images) {
+
+    private static CachedMail of(MessageWrapper message, long uidValidity, boolean withBody) {
+      return new CachedMail(message.getId(), message.getSubject(), message.getFolder(), message.getSender(),
+        message.getDescription(), message.getNum(), message.getUid(), uidValidity, message.getReceivedDate(),
+        message.getSize(), message.isSeen(), message.getAttachments(), message.getPreview(),
+        withBody ? message.getFullBody() : null, message.isAsPlainText(),
+        withBody && !message.getImages().isEmpty() ? message.getImages() : null);
+    }
+
+    private CachedMail withSeen(boolean seen) {
+      return new CachedMail(id, subject, folder, sender, description, num, uid, uidValidity, receivedDate, size, seen,
+        attachments, preview, fullBody, asPlainText, images);
+    }
+
+    private MessageWrapper toMessage() {
+      MessageWrapper message = new MessageWrapper(id, subject, folder, sender, description, num, uid, receivedDate,
+        size, seen, attachments == null ? Set.of() : attachments);
+      message.setPreview(preview);
+      if (fullBody != null) {
+        message.restoreBody(fullBody, asPlainText);
+        if (images != null) {
+          message.getImages().putAll(images);
+        }
+      }
+      return message;
+    }
+  }
+}
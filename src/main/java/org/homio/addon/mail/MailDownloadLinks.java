@@ -0,0 +1,65 @@
+package org.homio.addon.mail;
+
+import org.jetbrains.annotations.NotNull;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.time.Duration;
+import java.util.Base64;
+
+/**
+ * Short-lived signed urls of mail parts. Browser loads them with plain link or img tag, which can't carry session
+ * token, so url is issued only by authenticated call-service and carries own signature. Signature covers entity,
+ * mail id, part section and expiry, so url can't be changed to other part or used after it expires. Key is
+ * generated on start, so restart invalidates all issued urls.
+ */
+public final class MailDownloadLinks {
+
+  private static final Duration TTL = Duration.ofHours(1);
+  private static final String ALGORITHM = "HmacSHA256";
+  private static final byte[] KEY = new byte[32];
+
+  static {
+    new SecureRandom().nextBytes(KEY);
+  }
+
+  private MailDownloadLinks() {
+  }
+
+  public static @NotNull String create(@NotNull String entityID, @NotNull String id, @NotNull String section) {
+    long expires = System.currentTimeMillis() + TTL.toMillis();
+    return "/rest/mail/%s/attachment?id=%s&section=%s&expires=%d&sig=%s".formatted(encode(entityID), encode(id),
+      encode(section), expires, sign(entityID, id, section, expires));
+  }
+
+  /**
+   * @return true if signature matches and url isn't expired
+   */
+  public static boolean verify(@NotNull String entityID, @NotNull String id, @NotNull String section, long expires,
+                               @NotNull String signature) {
+    if (expires < System.currentTimeMillis()) {
+      return false;
+    }
+    byte[] expected = sign(entityID, id, section, expires).getBytes(StandardCharsets.US_ASCII);
+    return MessageDigest.isEqual(expected, signature.getBytes(StandardCharsets.US_ASCII));
+  }
+
+  private static String sign(String entityID, String id, String section, long expires) {
+    try {
+      Mac mac = Mac.getInstance(ALGORITHM);
+      mac.init(new SecretKeySpec(KEY, ALGORITHM));
+      String payload = entityID + '\u0000' + id + '\u0000' + section + '\u0000' + expires;
+      return Base64.getUrlEncoder().withoutPadding().encodeToString(mac.doFinal(payload.getBytes(StandardCharsets.UTF_8)));
+    } catch (Exception ex) {
+      throw new IllegalStateException(ex);
+    }
+  }
+
+  private static String encode(String value) {
+    return URLEncoder.encode(value, StandardCharsets.UTF_8);
+  }
+}
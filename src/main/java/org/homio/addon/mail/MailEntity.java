@@ -1,5 +1,6 @@
 package org.homio.addon.mail;
 
+import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.node.ArrayNode;
 import jakarta.persistence.Entity;
 import jakarta.validation.constraints.Min;
@@ -31,6 +32,8 @@ import org.homio.api.widget.HasCustomWidget;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 import java.util.function.Function;
@@ -46,18 +49,44 @@ public class MailEntity extends CommunicationEntity implements HasCustomWidget,
 
   @Override
   public @Nullable Map<String, CallServiceMethod> getCallServices() {
-    return Map.of(
-      "getFullMailBody",
-      (context, params) -> getService().getFullMailBody(params.get("id").asText()),
-      "deleteMail",
-      (context, params) -> getService().deleteMail(params.get("id").asText()),
-    "sendMail",
-      (context, params) -> getService().sendMail(
-        params.get("to").asText(),
-        params.get("subject").asText(),
-        params.get("body").asText(),
-        (ArrayNode)params.path("files")));
-
+    return Map.ofEntries(
+      Map.entry("queryMails",
+        (context, params) -> getService().queryMails(MailQuery.of(params, getDefFolder()))),
+      Map.entry("searchMails",
+        (context, params) -> getService().searchMails(params.path("query").asText(null), params.path("limit").asInt(50))),
+      Map.entry("getFullMailBody",
+        (context, params) -> getService().getFullMailBody(params.get("id").asText())),
+      Map.entry("uploadAttachment",
+        (context, params) -> getService().uploadAttachment(
+          params.hasNonNull("uploadId") ? params.get("uploadId").asText() : null,
+          params.get("name").asText(),
+          params.get("data").asText())),
+      Map.entry("deleteMail",
+        (context, params) -> getService().deleteMail(params.get("id").asText())),
+      Map.entry("deleteMails",
+        (context, params) -> getService().deleteMails(getIds(params))),
+      Map.entry("moveMails",
+        (context, params) -> getService().moveMails(getIds(params), params.get("target").asText())),
+      Map.entry("setMailsFlag",
+        (context, params) -> getService().setMailsFlag(getIds(params),
+          MailService.MailFlag.valueOf(params.get("flag").asText()), params.get("value").asBoolean())),
+      Map.entry("markAllRead",
+        (context, params) -> getService().markAllRead(params.hasNonNull("folder") ? params.get("folder").asText() : null)),
+      Map.entry("getMetrics",
+        (context, params) -> getService().getMetrics().toJson()),
+      Map.entry("sendMail",
+        (context, params) -> getService().sendMail(
+          params.get("to").asText(),
+          params.get("subject").asText(),
+          params.get("body").asText(),
+          (ArrayNode) params.path("files"))));
+
+  }
+
+  private static List<String> getIds(JsonNode params) {
+    List<String> ids = new ArrayList<>();
+    params.path("ids").forEach(id -> ids.add(id.asText()));
+    return ids;
   }
 
   @Override
@@ -147,6 +176,37 @@ public class MailEntity extends CommunicationEntity implements HasCustomWidget,
     setJsonDataSecure("smtp_password", value);
   }
 
+  @UIField(order = 90)
+  @UIFieldGroup("SMTP")
+  @UIFieldSlider(min = 1, max = 120)
+  public int getSendRateLimit() {
+    return getJsonData("smtp_rate", 20);
+  }
+
+  public void setSendRateLimit(int value) {
+    setJsonData("smtp_rate", value);
+  }
+
+  @UIField(order = 92)
+  @UIFieldGroup("SMTP")
+  public int getOutboxCapacity() {
+    return getJsonData("outbox_cap", 100);
+  }
+
+  public void setOutboxCapacity(@Min(1) int value) {
+    setJsonData("outbox_cap", value);
+  }
+
+  @UIField(order = 94)
+  @UIFieldGroup("SMTP")
+  public boolean isSpoolOutbox() {
+    return getJsonData("outbox_spool", true);
+  }
+
+  public void setSpoolOutbox(boolean value) {
+    setJsonData("outbox_spool", value);
+  }
+
   @UIField(order = 100)
   public FetchProtocolType getMailFetchProtocolType() {
     return getJsonDataEnum("fetch_protocol", FetchProtocolType.IMAP);
@@ -156,6 +216,15 @@ public class MailEntity extends CommunicationEntity implements HasCustomWidget,
     setJsonData("fetch_protocol", value);
   }
 
+  @UIField(order = 110)
+  public ListenMode getListenMode() {
+    return getJsonDataEnum("listen_mode", ListenMode.IDLE);
+  }
+
+  public void setListenMode(ListenMode value) {
+    setJsonData("listen_mode", value);
+  }
+
   @UIField(order = 200, required = true, inlineEditWhenEmpty = true)
   @UIFieldGroup("POP3/IMAP")
   public String getPop3User() {
@@ -217,6 +286,17 @@ public class MailEntity extends CommunicationEntity implements HasCustomWidget,
     setJsonData("pop3_refresh_time", value);
   }
 
+  @UIField(order = 260)
+  @UIFieldGroup("POP3/IMAP")
+  @UIFieldSlider(min = 1, max = 10)
+  public int getMaxConnections() {
+    return getJsonData("max_conn", 3);
+  }
+
+  public void setMaxConnections(int value) {
+    setJsonData("max_conn", value);
+  }
+
   @UIField(order = 300)
   @UIFieldGroup("GENERAL")
   public String getDefFolder() {
@@ -237,6 +317,66 @@ public class MailEntity extends CommunicationEntity implements HasCustomWidget,
     setJsonData("mcfos", value);
   }
 
+  @UIField(order = 360)
+  @UIFieldGroup("GENERAL")
+  public int getMaxMailsInFolder() {
+    return getJsonData("mmif", 1000);
+  }
+
+  public void setMaxMailsInFolder(@Min(10) int value) {
+    setJsonData("mmif", value);
+  }
+
+  @UIField(order = 370)
+  @UIFieldGroup("GENERAL")
+  public boolean isFullTextIndex() {
+    return getJsonData("fts", false);
+  }
+
+  public void setFullTextIndex(boolean value) {
+    setJsonData("fts", value);
+  }
+
+  @UIField(order = 380)
+  @UIFieldGroup("GENERAL")
+  @UIFieldSlider(min = 0, max = 600)
+  public int getMailCountMaxAge() {
+    return getJsonData("count_ttl", 60);
+  }
+
+  public void setMailCountMaxAge(int value) {
+    setJsonData("count_ttl", value);
+  }
+
+  @UIField(order = 390)
+  @UIFieldGroup("GENERAL")
+  @UIFieldSlider(min = 0, max = 2048, step = 16)
+  public int getAttachmentCacheSize() {
+    return getJsonData("att_cache", 256);
+  }
+
+  public void setAttachmentCacheSize(int value) {
+    setJsonData("att_cache", value);
+  }
+
+  @UIField(order = 500, hideInEdit = true)
+  @UIFieldGroup("METRICS")
+  public String getMetricTimers() {
+    return optService().map(service -> service.getMetrics().getTimersSummary()).orElse(null);
+  }
+
+  @UIField(order = 510, hideInEdit = true)
+  @UIFieldGroup("METRICS")
+  public String getMetricCounters() {
+    return optService().map(service -> service.getMetrics().getCountersSummary()).orElse(null);
+  }
+
+  @UIField(order = 520, hideInEdit = true)
+  @UIFieldGroup("METRICS")
+  public String getMetricGauges() {
+    return optService().map(service -> service.getMetrics().getGaugesSummary()).orElse(null);
+  }
+
   @Override
   public String getDefaultName() {
     return "MailBot";
@@ -249,8 +389,11 @@ public class MailEntity extends CommunicationEntity implements HasCustomWidget,
 
   @Override
   public long getEntityServiceHashCode() {
-    return getJsonDataHashCode("pop3_hostname", "pop3_password",
-      "pop3_user", "smtp_hostname", "smtp_user", "smtp_password");
+    // SMTP session and connections are cached by service, so every setting they are built from restarts it.
+    // Predefined type provides default hosts and security
+    return getJsonDataHashCode("def_type", "pop3_hostname", "pop3_password", "pop3_user", "pop3_port",
+      "pop3_security", "fetch_protocol", "listen_mode", "max_conn", "smtp_hostname", "smtp_port", "smtp_security",
+      "smtp_user", "smtp_password", "fts");
   }
 
   @Override
@@ -271,6 +414,18 @@ public class MailEntity extends CommunicationEntity implements HasCustomWidget,
     private final Function<MailEntity, Integer> defaultPortFn;
   }
 
+  public enum ListenMode {
+    /**
+     * Read mails from server with adaptive interval, at least every 'pop3RefreshTime' seconds
+     */
+    POLLING,
+    /**
+     * Hold IMAP IDLE connection and read mails as soon as server notifies about them. Fallback to polling for POP3
+     * or if server doesn't support IDLE
+     */
+    IDLE
+  }
+
   @RequiredArgsConstructor
   public enum Security implements KeyValueEnum {
     PLAIN("plain"),
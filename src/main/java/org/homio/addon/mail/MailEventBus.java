@@ -0,0 +1,92 @@
+package org.homio.addon.mail;
+
+import com.pivovarit.function.ThrowingConsumer;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.log4j.Log4j2;
+import org.homio.addon.mail.MailService.MessageWrapper;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Predicate;
+
+/**
+ * New mail notifications of single mail entity. Sync engine publishes each new mail once and every subscriber
+ * (i.e. workspace hat) only tests own filter against already fetched mail. Subscribers are called on own thread
+ * of entity in publish order, because publisher holds folder lock and server connection, and subscriber may
+ * load mail body or run long workspace script.
+ */
+@Log4j2
+@RequiredArgsConstructor
+public class MailEventBus {
+
+  private final @NotNull String entityID;
+  private final Map<String, Subscription> subscriptions = new ConcurrentHashMap<>();
+  private ExecutorService dispatcher;
+
+  public void subscribe(@NotNull String key, @NotNull Predicate<MessageWrapper> filter,
+                        @NotNull ThrowingConsumer<MessageWrapper, Exception> handler) {
+    subscriptions.put(key, new Subscription(filter, handler));
+  }
+
+  public void unsubscribe(@NotNull String key) {
+    subscriptions.remove(key);
+  }
+
+  public boolean isEmpty() {
+    return subscriptions.isEmpty();
+  }
+
+  /**
+   * @param messages new mails ordered from oldest to newest
+   */
+  public void publish(@NotNull List<MessageWrapper> messages) {
+    if (messages.isEmpty() || subscriptions.isEmpty()) {
+      return;
+    }
+    List<MessageWrapper> copy = List.copyOf(messages);
+    getDispatcher().execute(() -> dispatch(copy));
+  }
+
+  /**
+   * Stop dispatch thread. Not yet delivered mails are dropped
+   */
+  public synchronized void close() {
+    if (dispatcher != null) {
+      dispatcher.shutdownNow();
+      dispatcher = null;
+    }
+  }
+
+  private synchronized ExecutorService getDispatcher() {
+    if (dispatcher == null) {
+      dispatcher = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "mail-events-" + entityID);
+        thread.setDaemon(true);
+        return thread;
+      });
+    }
+    return dispatcher;
+  }
+
+  private void dispatch(List<MessageWrapper> messages) {
+    for (Map.Entry<String, Subscription> entry : subscriptions.entrySet()) {
+      Subscription subscription = entry.getValue();
+      for (MessageWrapper message : messages) {
+        try {
+          if (subscription.filter.test(message)) {
+            subscription.handler.accept(message);
+          }
+        } catch (Exception ex) {
+          log.error("[{}]: Error while handle new mail by subscriber: {}", entityID, entry.getKey(), ex);
+        }
+      }
+    }
+  }
+
+  private record Subscription(Predicate<MessageWrapper> filter, ThrowingConsumer<MessageWrapper, Exception> handler) {
+  }
+}
@@ -0,0 +1,100 @@
+package org.homio.addon.mail;
+
+import org.homio.addon.mail.MailService.MailCountFilter;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Total/unread/recent mail counters per folder. Counters are loaded with single IMAP STATUS and then kept up to
+ * date by sync engine events, so frequently evaluated counters don't query server. Deltas from events may miss
+ * changes made by other clients, so counters are re-read from server once they are older than staleness bound.
+ */
+public class MailFolderCounters {
+
+  private final Map<String, Counts> counters = new ConcurrentHashMap<>();
+
+  /**
+   * @return counter value or null if counter is unknown, older than maxAge or not tracked (deleted mails)
+   */
+  public @Nullable Integer get(@NotNull String folder, @NotNull MailCountFilter filter, @NotNull Duration maxAge) {
+    Counts counts = counters.get(folder);
+    if (counts == null || filter == MailCountFilter.deleted) {
+      return null;
+    }
+    synchronized (counts) {
+      if (System.currentTimeMillis() - counts.updated > maxAge.toMillis()) {
+        return null;
+      }
+      return switch (filter) {
+        case total -> counts.total;
+        case unread -> counts.unread;
+        case recent -> counts.recent;
+        case deleted -> null;
+      };
+    }
+  }
+
+  /**
+   * Set counters read from server
+   */
+  public void update(@NotNull String folder, int total, int unread, int recent) {
+    Counts counts = counters.computeIfAbsent(folder, f -> new Counts());
+    synchronized (counts) {
+      counts.total = total;
+      counts.unread = unread;
+      counts.recent = recent;
+      counts.updated = System.currentTimeMillis();
+    }
+  }
+
+  /**
+   * Apply folder sync result. EXISTS and RECENT come with SELECT response, unread is adjusted by new mails
+   */
+  public void synced(@NotNull String folder, int total, int recent, int newUnread) {
+    Counts counts = counters.get(folder);
+    if (counts != null) {
+      synchronized (counts) {
+        counts.total = total;
+        counts.recent = recent;
+        counts.unread = Math.min(total, counts.unread + newUnread);
+      }
+    }
+  }
+
+  public void adjust(@NotNull String folder, int totalDelta, int unreadDelta) {
+    Counts counts = counters.get(folder);
+    if (counts != null) {
+      synchronized (counts) {
+        counts.total = Math.max(0, counts.total + totalDelta);
+        counts.unread = Math.max(0, Math.min(counts.total, counts.unread + unreadDelta));
+      }
+    }
+  }
+
+  public void setUnread(@NotNull String folder, int unread) {
+    Counts counts = counters.get(folder);
+    if (counts != null) {
+      synchronized (counts) {
+        counts.unread = unread;
+      }
+    }
+  }
+
+  /**
+   * Force reading counters from server on next request, i.e. if folder got mails that weren't synced
+   */
+  public void invalidate(@NotNull String folder) {
+    counters.remove(folder);
+  }
+
+  private static final class Counts {
+    private int total;
+    private int unread;
+    private int recent;
+    private long updated;
+  }
+}
@@ -0,0 +1,409 @@
+package org.homio.addon.mail;
+
+import jakarta.mail.FetchProfile;
+import jakarta.mail.Flags;
+import jakarta.mail.Folder;
+import jakarta.mail.FolderClosedException;
+import jakarta.mail.Message;
+import jakarta.mail.MessagingException;
+import jakarta.mail.StoreClosedException;
+import jakarta.mail.UIDFolder;
+import jakarta.mail.internet.MimeMessage;
+import jakarta.mail.search.ComparisonTerm;
+import jakarta.mail.search.ReceivedDateTerm;
+import lombok.RequiredArgsConstructor;
+import lombok.SneakyThrows;
+import lombok.extern.log4j.Log4j2;
+import org.eclipse.angus.mail.pop3.POP3Folder;
+import org.eclipse.angus.mail.pop3.POP3Message;
+import org.homio.addon.mail.MailService.MessageWrapper;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.UUID;
+import java.util.function.Consumer;
+
+/**
+ * Loads new mails of single open folder into MailMessageStore: finds mails that appeared since last sync, loads
+ * their envelopes and structure with single FETCH and reads part tree and preview of each. Everything else of
+ * folder sync (disk cache, counters, notifications) is done by MailService. Kept apart from service, so listing
+ * may be benchmarked and tested without running service
+ */
+@Log4j2
+@RequiredArgsConstructor
+class MailFolderReader {
+
+  private static final int MAX_READ_ATTEMPTS = 3;
+
+  private final @NotNull MailEntity entity;
+  private final @NotNull MailMetrics metrics;
+  private final @NotNull MailMessageStore messageStore;
+  private final @NotNull Map<String, FolderSyncState> folderSyncStates;
+  private final @NotNull MailPop3SeenSet pop3SeenSet;
+  // read whole text for full-text index, preview is cut from it
+  private final boolean indexText;
+  // ids of POP3 mails that were deleted by other client
+  private final @NotNull Consumer<Collection<String>> removedHandler;
+  // number of syncs in a row POP3 mail failed to read, by UIDL
+  private final Map<String, Integer> pop3Failures = new ConcurrentHashMap<>();
+
+  /**
+   * @param mailbox open folder
+   */
+  @NotNull Result read(@NotNull Folder mailbox, @NotNull String folder) throws Exception {
+    Message[] found = metrics.time(MailMetrics.Op.search, () -> fetchNewMessages(mailbox, folder));
+    Message[] messages = fetchLatest(found);
+    if (mailbox instanceof POP3Folder pop3Folder) {
+      // mails over startup limit are never loaded later, same as IMAP mails below last UID
+      markPop3Seen(pop3Folder, Arrays.copyOfRange(found, 0, found.length - messages.length));
+    }
+    metrics.run(MailMetrics.Op.prefetch, () -> MailService.prefetch(mailbox, messages));
+    List<MessageWrapper> newMessages = new ArrayList<>(messages.length);
+    List<MailFullTextIndex.Doc> indexDocs = new ArrayList<>();
+    TreeSet<Long> failedUIDs = new TreeSet<>();
+    int failed = 0;
+    Exception lastError = null;
+    for (Message message : Arrays.stream(messages).sorted(getNewestFirstOrder(mailbox)).toList()) {
+      if (isStored(mailbox, folder, message)) {
+        // read by previous sync that failed on older mail
+        continue;
+      }
+      try {
+        MessageWrapper msg = mailbox instanceof POP3Folder pop3Folder
+          ? readPop3Message(pop3Folder, folder, message, indexDocs)
+          : readMessage(mailbox, folder, message, indexDocs);
+        messageStore.add(msg);
+        newMessages.add(msg);
+        if (mailbox instanceof POP3Folder) {
+          pop3SeenSet.add(List.of(msg.getId()));
+        }
+      } catch (Exception e) {
+        failed++;
+        lastError = e;
+        if (mailbox instanceof POP3Folder pop3Folder) {
+          pop3ReadFailed(pop3Folder, folder, message);
+        } else {
+          failedUIDs.add(getUID(mailbox, message));
+        }
+        log.debug("[{}]: Error while reading mail from {}", entity.getEntityID(), folder, e);
+      }
+    }
+    if (mailbox instanceof UIDFolder uidFolder) {
+      updateLastUID(uidFolder, folder, messages, failedUIDs);
+    }
+    metrics.increment(MailMetrics.Counter.messagesSynced, newMessages.size());
+    metrics.increment(MailMetrics.Counter.errors, failed);
+    return new Result(messages.length, newMessages, indexDocs, failed, lastError);
+  }
+
+  /**
+   * Read index entries of mails without adding mails to store, i.e. for mails that sync never loads. Mails that
+   * can't be parsed are skipped, lost connection fails whole batch
+   */
+  @NotNull List<MailFullTextIndex.Doc> readIndexDocs(@NotNull Folder mailbox, @NotNull String folder,
+                                                     @NotNull Message[] messages) throws Exception {
+    metrics.run(MailMetrics.Op.prefetch, () -> MailService.prefetch(mailbox, messages));
+    List<MailFullTextIndex.Doc> indexDocs = new ArrayList<>(messages.length);
+    for (Message message : messages) {
+      try {
+        if (mailbox instanceof POP3Folder pop3Folder) {
+          readPop3Message(pop3Folder, folder, message, indexDocs);
+        } else {
+          readMessage(mailbox, folder, message, indexDocs);
+        }
+      } catch (FolderClosedException | StoreClosedException e) {
+        throw e;
+      } catch (Exception e) {
+        metrics.increment(MailMetrics.Counter.errors, 1);
+        log.debug("[{}]: Unable to index mail from {}", entity.getEntityID(), folder, e);
+      }
+    }
+    return indexDocs;
+  }
+
+  private static Comparator<Message> getNewestFirstOrder(Folder mailbox) {
+    if (mailbox instanceof POP3Folder) {
+      // POP3 mails have no received date, but are numbered in arrival order
+      return Comparator.comparingInt(Message::getMessageNumber).reversed();
+    }
+    return Comparator.comparing((Message m) -> {
+        try {
+          return m.getReceivedDate();
+        } catch (MessagingException e) {
+          return new Date(0);
+        }
+      })
+      .reversed();
+  }
+
+  private MessageWrapper readMessage(Folder mailbox, String folder, Message message,
+                                     List<MailFullTextIndex.Doc> indexDocs) throws Exception {
+    long parseStart = System.nanoTime();
+    MailMimeTree mimeTree = MailMimeTree.parse(message);
+    metrics.record(MailMetrics.Op.parse, parseStart);
+    var msg = new MessageWrapper(getMessageId(mailbox, folder, message), message.getSubject(), folder, message.getFrom()[0].toString(),
+      message.getDescription(), message.getMessageNumber(), getUID(mailbox, message), message.getReceivedDate(),
+      message.getSize(), message.isSet(Flags.Flag.SEEN), mimeTree.getAttachmentNames());
+    msg.setMimeTree(mimeTree);
+    long fetchStart = System.nanoTime();
+    readPreview(msg, message, mimeTree, indexDocs);
+    metrics.record(MailMetrics.Op.preview, fetchStart);
+    metrics.increment(MailMetrics.Counter.bytesFetched, indexText ? MailPreviewReader.getFullTextFetchSize(mimeTree)
+      : MailPreviewReader.getFetchSize(mimeTree, MailPreviewReader.PREVIEW_LENGTH));
+    return msg;
+  }
+
+  /**
+   * Only headers and first lines of POP3 mail are loaded with TOP. Part tree of such truncated mail is incomplete,
+   * so it isn't kept and is parsed again from full mail when body is opened. UIDL is used as mail id, because POP3
+   * message numbers shift when mails are deleted
+   */
+  private MessageWrapper readPop3Message(POP3Folder mailbox, String folder, Message message,
+                                         List<MailFullTextIndex.Doc> indexDocs) throws Exception {
+    long fetchStart = System.nanoTime();
+    MimeMessage head = MailPreviewReader.readPop3Head((POP3Message) message,
+      indexText ? MailPreviewReader.MAX_FULL_TEXT_BYTES : MailPreviewReader.PREVIEW_LENGTH);
+    metrics.record(MailMetrics.Op.preview, fetchStart);
+    metrics.increment(MailMetrics.Counter.bytesFetched, Math.max(0, head.getSize()));
+    long parseStart = System.nanoTime();
+    MailMimeTree mimeTree = MailMimeTree.parse(head);
+    metrics.record(MailMetrics.Op.parse, parseStart);
+    Date sentDate = head.getSentDate();
+    var msg = new MessageWrapper(mailbox.getUID(message), head.getSubject(), folder, head.getFrom()[0].toString(),
+      head.getDescription(), message.getMessageNumber(), -1, sentDate == null ? new Date() : sentDate,
+      message.getSize(), false, mimeTree.getAttachmentNames());
+    readPreview(msg, head, mimeTree, indexDocs);
+    return msg;
+  }
+
+  private void readPreview(MessageWrapper msg, Message message, MailMimeTree mimeTree,
+                           List<MailFullTextIndex.Doc> indexDocs) throws Exception {
+    if (!indexText) {
+      msg.setPreview(MailPreviewReader.readPreview(message, mimeTree));
+    } else {
+      // same fetch feeds preview and index
+      String text = MailPreviewReader.readFullText(message, mimeTree);
+      msg.setPreview(MailPreviewReader.truncate(text));
+      indexDocs.add(MailFullTextIndex.Doc.of(msg, Arrays.asList(MailService.getRecipients(message), text)));
+    }
+  }
+
+  /**
+   * Fetch only messages that appeared since last sync. IMAP folders are tracked by UIDVALIDITY and last seen UID,
+   * so quiet mailbox costs single SELECT. Other folders fallback to received date search
+   */
+  private Message[] fetchNewMessages(Folder mailbox, String folder) throws MessagingException {
+    FolderSyncState state = folderSyncStates.get(folder);
+    if (mailbox instanceof UIDFolder uidFolder) {
+      long uidValidity = uidFolder.getUIDValidity();
+      if (state == null || state.uidValidity != uidValidity) {
+        if (state != null) {
+          // UIDs were reassigned by server, cached messages are not valid anymore
+          messageStore.clearFolder(folder);
+        }
+        state = new FolderSyncState(uidValidity);
+        folderSyncStates.put(folder, state);
+        return getLastMessages(mailbox);
+      }
+      // UIDNEXT comes with SELECT response, so no extra round-trip if nothing changed
+      long uidNext = uidFolder.getUIDNext();
+      if (uidNext > 0 && uidNext <= state.lastUID + 1) {
+        return new Message[0];
+      }
+      long lastUID = state.lastUID;
+      // 'n:*' range always returns at least last message even if its UID less than n
+      return Arrays.stream(uidFolder.getMessagesByUID(lastUID + 1, UIDFolder.LASTUID))
+        .filter(message -> message != null && getUID(mailbox, message) > lastUID)
+        .toArray(Message[]::new);
+    }
+    if (mailbox instanceof POP3Folder pop3Folder) {
+      return fetchNewPop3Messages(pop3Folder, folder);
+    }
+
+    if (state == null) {
+      state = new FolderSyncState(0);
+      folderSyncStates.put(folder, state);
+    }
+    long now = System.currentTimeMillis();
+    Message[] messages = state.lastChecked == 0 ? getLastMessages(mailbox) :
+      mailbox.search(new ReceivedDateTerm(ComparisonTerm.GT, new Date(state.lastChecked)));
+    state.lastChecked = now;
+    return messages;
+  }
+
+  /**
+   * POP3 has neither search nor received date. UIDL list of whole mailbox is single command with a few bytes per
+   * mail, so it's diffed against UIDLs of already synced mails and only new mails are loaded. Mails that are no
+   * longer listed were deleted by other client
+   */
+  private Message[] fetchNewPop3Messages(POP3Folder mailbox, String folder) throws MessagingException {
+    // first sync finds every mail new, read() loads latest of them
+    folderSyncStates.computeIfAbsent(folder, f -> new FolderSyncState(0));
+    Message[] messages = mailbox.getMessages();
+    FetchProfile profile = new FetchProfile();
+    profile.add(UIDFolder.FetchProfileItem.UID);
+    profile.add(FetchProfile.Item.SIZE);
+    mailbox.fetch(messages, profile);
+    Set<String> serverUidls = new HashSet<>();
+    List<Message> newMessages = new ArrayList<>();
+    for (Message message : messages) {
+      String uidl = mailbox.getUID(message);
+      if (uidl != null && serverUidls.add(uidl) && !pop3SeenSet.contains(uidl)) {
+        newMessages.add(message);
+      }
+    }
+    List<String> removed = messageStore.getFolderMessages(folder).stream()
+      .map(MessageWrapper::getId).filter(id -> !serverUidls.contains(id)).toList();
+    if (!removed.isEmpty()) {
+      log.info("[{}]: {} mails were removed from {} by other client", entity.getEntityID(), removed.size(), folder);
+      removedHandler.accept(removed);
+    }
+    pop3SeenSet.retain(serverUidls);
+    pop3Failures.keySet().retainAll(serverUidls);
+    // new mails are marked seen once they are read, so failed ones are loaded by next sync
+    return newMessages.toArray(new Message[0]);
+  }
+
+  private void markPop3Seen(POP3Folder mailbox, Message[] messages) throws MessagingException {
+    List<String> uidls = new ArrayList<>(messages.length);
+    for (Message message : messages) {
+      uidls.add(mailbox.getUID(message));
+    }
+    pop3SeenSet.add(uidls);
+  }
+
+  /**
+   * Mail that fails MAX_READ_ATTEMPTS syncs in a row is marked seen, so single broken mail isn't read forever
+   */
+  private void pop3ReadFailed(POP3Folder mailbox, String folder, Message message) throws MessagingException {
+    String uidl = mailbox.getUID(message);
+    if (pop3Failures.merge(uidl, 1, Integer::sum) >= MAX_READ_ATTEMPTS) {
+      log.warn("[{}]: Skip mail {} in {}, unable to read it {} times", entity.getEntityID(), uidl, folder,
+        MAX_READ_ATTEMPTS);
+      pop3Failures.remove(uidl);
+      pop3SeenSet.add(List.of(uidl));
+    }
+  }
+
+  /**
+   * Messages are ordered by sequence number, so latest ones are at the end of array
+   */
+  private Message[] fetchLatest(Message[] messages) {
+    int limit = entity.getMaxMailCountToFetchOnStartup();
+    if (messages.length <= limit) {
+      return messages;
+    }
+    return Arrays.copyOfRange(messages, messages.length - limit, messages.length);
+  }
+
+  private Message[] getLastMessages(Folder mailbox) throws MessagingException {
+    int total = mailbox.getMessageCount();
+    if (total <= 0) {
+      return new Message[0];
+    }
+    int from = Math.max(1, total - entity.getMaxMailCountToFetchOnStartup() + 1);
+    return mailbox.getMessages(from, total);
+  }
+
+  /**
+   * Last UID is moved only below oldest mail that failed, so it's read again by next sync. Mail that fails
+   * MAX_READ_ATTEMPTS syncs in a row is skipped, so single broken mail doesn't hold folder forever
+   */
+  private void updateLastUID(UIDFolder uidFolder, String folder, Message[] messages, TreeSet<Long> failedUIDs)
+    throws MessagingException {
+    FolderSyncState state = folderSyncStates.get(folder);
+    if (state == null) {
+      return;
+    }
+    Long oldestFailed = failedUIDs.isEmpty() ? null : failedUIDs.first();
+    if (oldestFailed != null && oldestFailed == state.failedUID && ++state.failedAttempts >= MAX_READ_ATTEMPTS) {
+      log.warn("[{}]: Skip mail UID {} in {}, unable to read it {} times", entity.getEntityID(), oldestFailed,
+        folder, state.failedAttempts);
+      failedUIDs.remove(oldestFailed);
+      oldestFailed = failedUIDs.isEmpty() ? null : failedUIDs.first();
+    }
+    if (oldestFailed == null || oldestFailed != state.failedUID) {
+      state.failedUID = oldestFailed == null ? 0 : oldestFailed;
+      state.failedAttempts = oldestFailed == null ? 0 : 1;
+    }
+    long limit = oldestFailed == null ? Long.MAX_VALUE : oldestFailed;
+    for (Message message : messages) {
+      long uid = uidFolder.getUID(message);
+      if (uid < limit) {
+        state.lastUID = Math.max(state.lastUID, uid);
+      }
+    }
+  }
+
+  private boolean isStored(Folder mailbox, String folder, Message message) throws MessagingException {
+    return mailbox instanceof UIDFolder && getUID(mailbox, message) > 0
+           && messageStore.get(getMessageId(mailbox, folder, message)) != null;
+  }
+
+  @SneakyThrows
+  private static long getUID(Folder folder, Message message) {
+    return folder instanceof UIDFolder uidFolder ? uidFolder.getUID(message) : -1;
+  }
+
+  /**
+   * Mail id unique within account. Message-ID header may be missing and is shared by copies of mail in several
+   * folders (i.e. Gmail 'All Mail'), so IMAP mails are keyed by folder, UIDVALIDITY and UID instead. Mails of
+   * folders without UIDs get generated id. POP3 mails are keyed by UIDL in readPop3Message()
+   */
+  static @NotNull String getMessageId(@NotNull Folder mailbox, @NotNull String folder, @NotNull Message message)
+    throws MessagingException {
+    if (mailbox instanceof UIDFolder uidFolder) {
+      long uid = uidFolder.getUID(message);
+      if (uid > 0) {
+        return "%s/%d/%d".formatted(folder, uidFolder.getUIDValidity(), uid);
+      }
+    }
+    return folder + "/" + UUID.randomUUID();
+  }
+
+  /**
+   * @param fetched   number of mails loaded from server
+   * @param newMails  mails added to store, newest first
+   * @param indexDocs full-text index entries of new mails, empty if index is disabled
+   */
+  record Result(int fetched, @NotNull List<MessageWrapper> newMails, @NotNull List<MailFullTextIndex.Doc> indexDocs,
+                int failed, @Nullable Exception lastError) {
+  }
+
+  static final class FolderSyncState {
+    final long uidValidity;
+    long lastUID;
+    long lastChecked;
+    // EXISTS count after last sync, to detect mails expunged by other clients without extra requests
+    int messageCount = -1;
+    long lastReconcile;
+    // oldest mail that failed to read and number of syncs in a row it failed
+    long failedUID;
+    int failedAttempts;
+
+    FolderSyncState(long uidValidity) {
+      this.uidValidity = uidValidity;
+    }
+
+    FolderSyncState(MailDiskCache.FolderState state) {
+      this.uidValidity = state.uidValidity();
+      this.lastUID = state.lastUID();
+      this.lastChecked = state.lastChecked();
+    }
+
+    MailDiskCache.FolderState toFolderState() {
+      return new MailDiskCache.FolderState(uidValidity, lastUID, lastChecked);
+    }
+  }
+}
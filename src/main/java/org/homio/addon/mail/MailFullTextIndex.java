@@ -0,0 +1,382 @@
+package org.homio.addon.mail;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import lombok.extern.log4j.Log4j2;
+import org.homio.addon.mail.MailService.MessageWrapper;
+import org.homio.api.util.CommonUtils;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.regex.Pattern;
+
+import static org.homio.api.util.JsonUtils.OBJECT_MAPPER;
+
+/**
+ * Optional full-text index over subject, sender, recipients, attachment names and body text of mails. Mails are
+ * added with whole text when folder sync loads them, and MailIndexBackfill walks all folders in background to
+ * index mails that sync never loads. Unlike MailSearchIndex it isn't bound to mails cached in memory, so indexed
+ * mails remain searchable.
+ * Index is kept in memory and persisted as append-only log of extracted terms and backfill positions, which is
+ * compacted once it contains too many outdated entries. Oldest mails are dropped from index when it exceeds
+ * postings budget.
+ */
+@Log4j2
+public class MailFullTextIndex {
+
+  // roughly 40-60 MB of heap
+  private static final int MAX_POSTINGS = 1_000_000;
+  private static final int MAX_TERMS_PER_MAIL = 2000;
+  private static final int MAX_TERM_LENGTH = 40;
+  private static final Pattern TOKEN_SEPARATOR = Pattern.compile("[^\\p{L}\\p{N}]+");
+  private static final Comparator<Doc> NEWEST_FIRST =
+    Comparator.comparingLong(Doc::date).reversed().thenComparing(Doc::id);
+
+  private final Path file;
+  private final ReadWriteLock lock = new ReentrantReadWriteLock();
+  private final Map<String, Doc> docs = new HashMap<>();
+  private final Map<String, Backfill> backfills = new HashMap<>();
+  private final TreeSet<Doc> docsByDate = new TreeSet<>(NEWEST_FIRST);
+  private final TreeMap<String, Set<String>> postings = new TreeMap<>();
+  private int postingsCount;
+  // number of lines in log file, to decide when to compact it
+  private int logEntries;
+
+  public MailFullTextIndex(@NotNull String entityID) {
+    this(getIndexDirectory(), entityID);
+  }
+
+  MailFullTextIndex(@NotNull Path directory, @NotNull String entityID) {
+    this.file = directory.resolve(entityID + ".jsonl");
+  }
+
+  /**
+   * Remove index file if index was disabled
+   */
+  public static void delete(@NotNull String entityID) {
+    MailAttachments.delete(getIndexDirectory().resolve(entityID + ".jsonl"));
+  }
+
+  public void load() {
+    lock.writeLock().lock();
+    try {
+      if (!Files.exists(file)) {
+        return;
+      }
+      try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+        String line;
+        while ((line = reader.readLine()) != null) {
+          if (!line.isBlank()) {
+            Entry entry = OBJECT_MAPPER.readValue(line, Entry.class);
+            if (entry.doc != null) {
+              put(entry.doc);
+            } else if (entry.backfill != null) {
+              backfills.put(entry.backfill.folder, entry.backfill);
+            } else if (entry.id != null) {
+              removeDoc(entry.id);
+            }
+            logEntries++;
+          }
+        }
+      } catch (Exception ex) {
+        // partially written last line after crash is fine, everything before it is already replayed
+        log.warn("Unable to fully read mail index {}: {}", file, ex.getMessage());
+      }
+      evictOldest();
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Add mails or extend already indexed mails with new terms, i.e. once mail body is loaded
+   */
+  public void add(@NotNull Collection<Doc> newDocs) {
+    if (newDocs.isEmpty()) {
+      return;
+    }
+    lock.writeLock().lock();
+    try {
+      List<Entry> entries = new ArrayList<>(newDocs.size());
+      for (Doc doc : newDocs) {
+        Doc existed = docs.get(doc.id);
+        if (existed != null && existed.terms.containsAll(doc.terms)) {
+          continue;
+        }
+        Doc merged = existed == null ? doc : existed.merge(doc);
+        put(merged);
+        entries.add(new Entry(merged, null, null));
+      }
+      append(entries);
+      evictOldest();
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  public void remove(@NotNull Collection<String> ids) {
+    lock.writeLock().lock();
+    try {
+      List<Entry> entries = new ArrayList<>();
+      for (String id : ids) {
+        if (removeDoc(id)) {
+          entries.add(new Entry(null, id, null));
+        }
+      }
+      append(entries);
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * @param query words to search, every word matches as prefix of indexed word
+   * @param limit max mails to return
+   * @return newest mails that contain every word of query
+   */
+  public @NotNull List<Doc> search(@Nullable String query, int limit) {
+    Set<String> words = new HashSet<>();
+    tokenize(query, words);
+    if (words.isEmpty()) {
+      return List.of();
+    }
+    lock.readLock().lock();
+    try {
+      Set<String> result = null;
+      for (String word : words) {
+        Set<String> matches = new HashSet<>();
+        for (Set<String> ids : postings.subMap(word, true, word + Character.MAX_VALUE, false).values()) {
+          for (String id : ids) {
+            if (result == null || result.contains(id)) {
+              matches.add(id);
+            }
+          }
+        }
+        result = matches;
+        if (result.isEmpty()) {
+          return List.of();
+        }
+      }
+      return result.stream().map(docs::get).sorted(NEWEST_FIRST).limit(limit).toList();
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  public boolean contains(@NotNull String id) {
+    lock.readLock().lock();
+    try {
+      return docs.containsKey(id);
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * @return true if index reached postings budget, so every older mail added to it evicts itself right away
+   */
+  public boolean isFull() {
+    lock.readLock().lock();
+    try {
+      return postingsCount >= MAX_POSTINGS;
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  public @Nullable Backfill getBackfill(@NotNull String folder) {
+    lock.readLock().lock();
+    try {
+      return backfills.get(folder);
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  public void setBackfill(@NotNull Backfill backfill) {
+    lock.writeLock().lock();
+    try {
+      if (!backfill.equals(backfills.put(backfill.folder, backfill))) {
+        append(List.of(new Entry(null, null, backfill)));
+      }
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  public int size() {
+    lock.readLock().lock();
+    try {
+      return docs.size();
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Rewrite log from memory if most of its lines are outdated
+   */
+  public void compactIfRequire() {
+    lock.writeLock().lock();
+    try {
+      if (logEntries <= (docs.size() + backfills.size()) * 2 + 1000) {
+        return;
+      }
+      Path tmpFile = file.resolveSibling(file.getFileName() + ".tmp");
+      try (BufferedWriter writer = Files.newBufferedWriter(tmpFile, StandardCharsets.UTF_8)) {
+        for (Doc doc : docsByDate) {
+          writer.write(OBJECT_MAPPER.writeValueAsString(new Entry(doc, null, null)));
+          writer.newLine();
+        }
+        for (Backfill backfill : backfills.values()) {
+          writer.write(OBJECT_MAPPER.writeValueAsString(new Entry(null, null, backfill)));
+          writer.newLine();
+        }
+      }
+      Files.move(tmpFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      logEntries = docs.size() + backfills.size();
+    } catch (IOException ex) {
+      log.error("Unable to compact mail index {}", file, ex);
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  private void put(Doc doc) {
+    removeDoc(doc.id);
+    docs.put(doc.id, doc);
+    docsByDate.add(doc);
+    for (String term : doc.terms) {
+      postings.computeIfAbsent(term, t -> new HashSet<>()).add(doc.id);
+    }
+    postingsCount += doc.terms.size();
+  }
+
+  private boolean removeDoc(String id) {
+    Doc doc = docs.remove(id);
+    if (doc == null) {
+      return false;
+    }
+    docsByDate.remove(doc);
+    for (String term : doc.terms) {
+      Set<String> ids = postings.get(term);
+      if (ids != null && ids.remove(id) && ids.isEmpty()) {
+        postings.remove(term);
+      }
+    }
+    postingsCount -= doc.terms.size();
+    return true;
+  }
+
+  private void evictOldest() {
+    List<Entry> entries = new ArrayList<>();
+    while (postingsCount > MAX_POSTINGS && !docsByDate.isEmpty()) {
+      String id = docsByDate.last().id;
+      removeDoc(id);
+      entries.add(new Entry(null, id, null));
+    }
+    if (!entries.isEmpty()) {
+      log.info("Mail index {} exceeds memory budget. Removed {} oldest mails", file.getFileName(), entries.size());
+      append(entries);
+    }
+  }
+
+  private void append(List<Entry> entries) {
+    if (entries.isEmpty()) {
+      return;
+    }
+    try {
+      Files.createDirectories(file.getParent());
+      try (BufferedWriter writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8,
+        StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
+        for (Entry entry : entries) {
+          writer.write(OBJECT_MAPPER.writeValueAsString(entry));
+          writer.newLine();
+        }
+      }
+      logEntries += entries.size();
+    } catch (IOException ex) {
+      log.error("Unable to write mail index {}", file, ex);
+    }
+  }
+
+  private static Path getIndexDirectory() {
+    return CommonUtils.getFilesPath().resolve("mail").resolve("fulltext");
+  }
+
+  private static void tokenize(@Nullable String text, Set<String> terms) {
+    if (text == null || text.isEmpty()) {
+      return;
+    }
+    for (String token : TOKEN_SEPARATOR.split(text.toLowerCase(Locale.ROOT))) {
+      if (terms.size() >= MAX_TERMS_PER_MAIL) {
+        return;
+      }
+      if (!token.isEmpty() && token.length() <= MAX_TERM_LENGTH) {
+        terms.add(token);
+      }
+    }
+  }
+
+  /**
+   * Indexed mail. Only terms are stored, so search result contains mail summary but not text itself
+   */
+  public record Doc(String id, String folder, String subject, String sender, long date, Set<String> terms) {
+
+    public static @NotNull Doc of(@NotNull MessageWrapper message, @NotNull Collection<String> texts) {
+      Set<String> terms = new LinkedHashSet<>();
+      tokenize(message.getSubject(), terms);
+      tokenize(message.getSender(), terms);
+      for (String attachment : message.getAttachments()) {
+        tokenize(attachment, terms);
+      }
+      for (String text : texts) {
+        tokenize(text, terms);
+      }
+      long date = message.getReceivedDate() == null ? 0 : message.getReceivedDate().getTime();
+      return new Doc(message.getId(), message.getFolder(), message.getSubject(), message.getSender(), date, terms);
+    }
+
+    private Doc merge(Doc doc) {
+      Set<String> union = new LinkedHashSet<>(terms);
+      for (String term : doc.terms) {
+        if (union.size() >= MAX_TERMS_PER_MAIL) {
+          break;
+        }
+        union.add(term);
+      }
+      return new Doc(id, doc.folder, doc.subject, doc.sender, doc.date, union);
+    }
+  }
+
+  /**
+   * Backfill position of IMAP folder: mails with UID in [fromUID, toUID) are indexed
+   */
+  public record Backfill(String folder, long uidValidity, long fromUID, long toUID) {
+  }
+
+  @JsonInclude(JsonInclude.Include.NON_NULL)
+  record Entry(@Nullable Doc doc, @Nullable String id, @Nullable Backfill backfill) {
+  }
+}
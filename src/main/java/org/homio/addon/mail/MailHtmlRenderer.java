@@ -0,0 +1,160 @@
+package org.homio.addon.mail;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.jsoup.Jsoup;
+import org.jsoup.nodes.Element;
+import org.jsoup.nodes.Node;
+import org.jsoup.nodes.TextNode;
+import org.jsoup.select.NodeTraversor;
+import org.jsoup.select.NodeVisitor;
+
+import java.util.function.Function;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Prepares mail body for widget in single pass over text: normalizes line breaks of html and wraps plain text.
+ * Text itself, including 'cid:' links of inline images, is kept as is. Links are resolved per request by
+ * resolveCidLinks(), because urls of parts are short-lived.
+ */
+public final class MailHtmlRenderer {
+
+  // 'cid:' value of src or href attribute, quoted or not
+  private static final Pattern CID_ATTRIBUTE = Pattern.compile("(?i)(\\s(?:src|href)\\s*=\\s*[\"']?)cid:([^\"'\\s>]+)");
+
+  private MailHtmlRenderer() {
+  }
+
+  public static @NotNull String render(@NotNull String body, boolean plainText) {
+    boolean wrapPlainText = plainText && !body.startsWith("<html");
+    StringBuilder result = new StringBuilder(body.length() + 32);
+    if (wrapPlainText) {
+      result.append("<html><body>");
+    }
+    int length = body.length();
+    int i = 0;
+    while (i < length) {
+      char ch = body.charAt(i);
+      if (ch == '\r' || ch == '\n') {
+        if (ch == '\r' && i + 1 < length && body.charAt(i + 1) == '\n') {
+          i++;
+        }
+        if (wrapPlainText) {
+          result.append("<br>");
+        } else if (!plainText) {
+          result.append(ch == '\r' ? '\n' : ch);
+        }
+        i++;
+      } else if (ch == '<' && !plainText) {
+        int end = matchBrTag(body, i);
+        if (end > 0) {
+          i = end;
+        } else {
+          result.append(ch);
+          i++;
+        }
+      } else {
+        result.append(ch);
+        i++;
+      }
+    }
+    if (wrapPlainText) {
+      result.append("</body></html>");
+    }
+    return result.toString();
+  }
+
+  /**
+   * Replace 'cid:' links in src and href attributes of html body. Text outside of these attributes and cids
+   * without url are kept as is.
+   *
+   * @param urlOf url of inline part by its Content-ID, or null if mail has no such part
+   */
+  public static @NotNull String resolveCidLinks(@NotNull String html, @NotNull Function<String, @Nullable String> urlOf) {
+    Matcher matcher = CID_ATTRIBUTE.matcher(html);
+    StringBuilder result = null;
+    while (matcher.find()) {
+      String url = urlOf.apply(matcher.group(2));
+      if (url == null) {
+        continue;
+      }
+      if (result == null) {
+        result = new StringBuilder(html.length() + 256);
+      }
+      matcher.appendReplacement(result, Matcher.quoteReplacement(matcher.group(1) + url.replace("&", "&amp;")));
+    }
+    if (result == null) {
+      return html;
+    }
+    matcher.appendTail(result);
+    return result.toString();
+  }
+
+  /**
+   * Convert rendered body back to text for workspace blocks. Unlike Jsoup text() keeps line breaks: 'br' tags,
+   * i.e. lines of plain text mails, and html blocks start new line
+   */
+  public static @NotNull String toText(@NotNull String body) {
+    StringBuilder text = new StringBuilder(body.length());
+    NodeTraversor.traverse(new NodeVisitor() {
+      @Override
+      public void head(@NotNull Node node, int depth) {
+        if (node instanceof TextNode textNode) {
+          String value = textNode.text();
+          boolean lineStart = text.isEmpty() || text.charAt(text.length() - 1) == '\n';
+          text.append(lineStart ? value.stripLeading() : value);
+        } else if (node instanceof Element element) {
+          if (element.normalName().equals("br")) {
+            stripTrailingSpaces(text);
+            text.append('\n');
+          } else if (element.isBlock()) {
+            newLine(text);
+          }
+        }
+      }
+
+      @Override
+      public void tail(@NotNull Node node, int depth) {
+        if (node instanceof Element element && element.isBlock()) {
+          newLine(text);
+        }
+      }
+    }, Jsoup.parse(body).body());
+    return text.toString().strip();
+  }
+
+  private static void newLine(StringBuilder text) {
+    stripTrailingSpaces(text);
+    if (!text.isEmpty() && text.charAt(text.length() - 1) != '\n') {
+      text.append('\n');
+    }
+  }
+
+  private static void stripTrailingSpaces(StringBuilder text) {
+    int length = text.length();
+    while (length > 0 && text.charAt(length - 1) == ' ') {
+      length--;
+    }
+    text.setLength(length);
+  }
+
+  /**
+   * @return index after '&lt;br&gt;', '&lt;br/&gt;' or '&lt;BR /&gt;' tag or -1 if there is no br tag at position
+   */
+  private static int matchBrTag(String body, int start) {
+    int length = body.length();
+    int i = start + 1;
+    if (i + 1 >= length || Character.toLowerCase(body.charAt(i)) != 'b' || Character.toLowerCase(body.charAt(i + 1)) != 'r') {
+      return -1;
+    }
+    i += 2;
+    while (i < length && Character.isWhitespace(body.charAt(i))) {
+      i++;
+    }
+    if (i < length && body.charAt(i) == '/') {
+      i++;
+    }
+    return i < length && body.charAt(i) == '>' ? i + 1 : -1;
+  }
+}
@@ -0,0 +1,118 @@
+package org.homio.addon.mail;
+
+import com.pivovarit.function.ThrowingConsumer;
+import jakarta.mail.Folder;
+import jakarta.mail.Store;
+import jakarta.mail.event.MessageCountAdapter;
+import jakarta.mail.event.MessageCountEvent;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.log4j.Log4j2;
+import org.eclipse.angus.mail.imap.IMAPFolder;
+import org.eclipse.angus.mail.imap.IMAPStore;
+import org.homio.api.Context;
+import org.homio.api.ContextBGP;
+import org.jetbrains.annotations.NotNull;
+
+import java.time.Duration;
+
+/**
+ * Holds IMAP IDLE connection for single folder and notifies about new mails as soon as server pushes EXISTS
+ */
+@Log4j2
+@RequiredArgsConstructor
+public class MailIdleListener {
+
+  // servers drop IDLE connections after ~30min, so re-issue IDLE much earlier
+  private static final Duration KEEP_ALIVE = Duration.ofMinutes(9);
+  private static final Duration RECONNECT_DELAY = Duration.ofSeconds(30);
+
+  private final @NotNull Context context;
+  private final @NotNull MailEntity entity;
+  private final @NotNull MailStorePool storePool;
+  private final @NotNull String folderName;
+  private final @NotNull ThrowingConsumer<String, Exception> newMailHandler;
+  private final @NotNull Runnable idleNotSupportedHandler;
+
+  private volatile boolean stopped;
+  private volatile IMAPFolder folder;
+  private volatile long lastIdleStart;
+  private ContextBGP.ThreadContext<Void> listenerThread;
+
+  public void start() {
+    listenerThread =
+      context
+        .bgp()
+        .builder("mail-idle-%s-%s".formatted(entity.getEntityID(), folderName))
+        .execute(this::listen);
+  }
+
+  public void stop() {
+    stopped = true;
+    IMAPFolder imapFolder = folder;
+    if (imapFolder != null) {
+      try {
+        // closing store breaks blocking idle() call
+        imapFolder.getStore().close();
+      } catch (Exception ignore) {
+      }
+    }
+    ContextBGP.cancel(listenerThread);
+  }
+
+  /**
+   * Periodically interrupt IDLE with NOOP to keep connection alive
+   */
+  public void keepAlive() {
+    IMAPFolder imapFolder = folder;
+    if (imapFolder != null && System.currentTimeMillis() - lastIdleStart > KEEP_ALIVE.toMillis()) {
+      try {
+        imapFolder.doCommand(protocol -> {
+          protocol.noop();
+          return null;
+        });
+      } catch (Exception ex) {
+        log.warn("[{}]: Unable to send keep-alive for IDLE folder {}: {}", entity.getEntityID(), folderName, ex.getMessage());
+      }
+    }
+  }
+
+  private void listen() throws InterruptedException {
+    while (!stopped) {
+      try (MailStorePool.DedicatedStore dedicated = storePool.connectDedicated()) {
+        Store store = dedicated.getStore();
+        if (!(store instanceof IMAPStore imapStore) || !imapStore.hasCapability("IDLE")) {
+          log.warn("[{}]: Mail server doesn't support IDLE. Fallback to polling", entity.getEntityID());
+          idleNotSupportedHandler.run();
+          return;
+        }
+        IMAPFolder imapFolder = (IMAPFolder) store.getFolder(folderName);
+        imapFolder.open(Folder.READ_ONLY);
+        imapFolder.addMessageCountListener(new MessageCountAdapter() {
+          @Override
+          public void messagesAdded(MessageCountEvent event) {
+            try {
+              newMailHandler.accept(folderName);
+            } catch (Exception ex) {
+              log.error("[{}]: Error while handle new mails in folder {}", entity.getEntityID(), folderName, ex);
+            }
+          }
+        });
+        folder = imapFolder;
+        log.info("[{}]: Listen folder {} using IMAP IDLE", entity.getEntityID(), folderName);
+        while (!stopped && imapFolder.isOpen()) {
+          lastIdleStart = System.currentTimeMillis();
+          imapFolder.idle();
+        }
+      } catch (Exception ex) {
+        if (!stopped) {
+          log.warn("[{}]: IDLE connection to folder {} lost: {}", entity.getEntityID(), folderName, ex.getMessage());
+        }
+      } finally {
+        folder = null;
+      }
+      if (!stopped) {
+        Thread.sleep(RECONNECT_DELAY.toMillis());
+      }
+    }
+  }
+}
@@ -0,0 +1,212 @@
+package org.homio.addon.mail;
+
+import jakarta.mail.FetchProfile;
+import jakarta.mail.Folder;
+import jakarta.mail.Message;
+import jakarta.mail.MessagingException;
+import jakarta.mail.Store;
+import jakarta.mail.UIDFolder;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.log4j.Log4j2;
+import org.eclipse.angus.mail.pop3.POP3Folder;
+import org.homio.addon.mail.MailFullTextIndex.Backfill;
+import org.jetbrains.annotations.NotNull;
+
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Indexes mails that folder sync never loads, so full-text search covers whole account and not only watched
+ * folders. Every IMAP folder is walked from newest to oldest UID in small batches over pooled connection. Indexed
+ * UID range is kept in index, so backfill resumes after restart and starts folder over after UIDVALIDITY change.
+ * Mails that arrive above indexed range are picked up by next pass. POP3 mailbox has no UID ranges, so its UIDL
+ * list is diffed against index instead. Nothing is indexed while index is at its postings budget, because older
+ * mails would evict themselves right away
+ */
+@Log4j2
+@RequiredArgsConstructor
+class MailIndexBackfill {
+
+  // mails per run, so single run holds pooled connection for a few seconds only
+  private static final int BATCH_SIZE = 50;
+  private static final long MAX_UID_WINDOW = 1 << 20;
+  // next pass over all folders only picks up new mails of folders that aren't synced
+  private static final Duration PASS_INTERVAL = Duration.ofMinutes(30);
+
+  private final @NotNull MailEntity entity;
+  private final @NotNull MailStorePool storePool;
+  private final @NotNull MailFullTextIndex index;
+  private final @NotNull MailFolderReader folderReader;
+  private final Deque<String> pendingFolders = new ArrayDeque<>();
+  // POP3 mails that can't be indexed, to not read them again on every run
+  private final Set<String> skippedUidls = new HashSet<>();
+  private long nextPass;
+  private boolean full;
+
+  /**
+   * Index next batch of mails. Must be called from single background job
+   */
+  void run() {
+    if (index.isFull()) {
+      if (!full) {
+        full = true;
+        log.info("[{}]: Full-text index reached its memory budget, backfill of older mails is paused",
+          entity.getEntityID());
+      }
+      return;
+    }
+    full = false;
+    try {
+      if (pendingFolders.isEmpty()) {
+        if (System.currentTimeMillis() < nextPass) {
+          return;
+        }
+        nextPass = System.currentTimeMillis() + PASS_INTERVAL.toMillis();
+        pendingFolders.addAll(storePool.execute(MailIndexBackfill::listFolders));
+      }
+    } catch (Exception ex) {
+      log.warn("[{}]: Unable to list folders to index: {}", entity.getEntityID(), ex.getMessage());
+      return;
+    }
+    String folder = pendingFolders.peek();
+    if (folder == null) {
+      return;
+    }
+    try {
+      if (storePool.execute(store -> indexBatch(store, folder))) {
+        pendingFolders.poll();
+      }
+    } catch (Exception ex) {
+      // folder is retried by next pass
+      pendingFolders.poll();
+      log.warn("[{}]: Unable to index mails of {}: {}", entity.getEntityID(), folder, ex.getMessage());
+    }
+  }
+
+  /**
+   * @return true if folder is fully indexed
+   */
+  private boolean indexBatch(Store store, String folder) throws Exception {
+    try (Folder mailbox = store.getFolder(folder)) {
+      mailbox.open(Folder.READ_ONLY);
+      if (mailbox instanceof POP3Folder pop3Folder) {
+        return indexPop3Batch(pop3Folder, folder);
+      }
+      if (!(mailbox instanceof UIDFolder uidFolder)) {
+        return true;
+      }
+      long uidValidity = uidFolder.getUIDValidity();
+      Backfill position = index.getBackfill(folder);
+      if (position == null || position.uidValidity() != uidValidity) {
+        long uidNext = getUIDNext(mailbox, uidFolder);
+        position = new Backfill(folder, uidValidity, uidNext, uidNext);
+      }
+      // new mails first, they are most likely to be searched
+      long toUID = position.toUID();
+      Message[] newer = Arrays.stream(uidFolder.getMessagesByUID(toUID, UIDFolder.LASTUID))
+        .filter(message -> message != null && getUID(uidFolder, message) >= toUID)
+        .limit(BATCH_SIZE)
+        .toArray(Message[]::new);
+      if (newer.length > 0) {
+        index(mailbox, folder, newer);
+        index.setBackfill(new Backfill(folder, uidValidity, position.fromUID(),
+          getUID(uidFolder, newer[newer.length - 1]) + 1));
+        return false;
+      }
+      Message[] older = position.fromUID() > 1 ? findOlder(uidFolder, position.fromUID()) : new Message[0];
+      if (older.length == 0) {
+        index.setBackfill(new Backfill(folder, uidValidity, 1, toUID));
+        return true;
+      }
+      index(mailbox, folder, older);
+      index.setBackfill(new Backfill(folder, uidValidity, getUID(uidFolder, older[0]), toUID));
+      return false;
+    }
+  }
+
+  private boolean indexPop3Batch(POP3Folder mailbox, String folder) throws Exception {
+    Message[] messages = mailbox.getMessages();
+    FetchProfile profile = new FetchProfile();
+    profile.add(UIDFolder.FetchProfileItem.UID);
+    mailbox.fetch(messages, profile);
+    List<Message> missing = new ArrayList<>();
+    List<String> missingUidls = new ArrayList<>();
+    // messages are numbered in arrival order, newest at the end
+    for (int i = messages.length - 1; i >= 0 && missing.size() < BATCH_SIZE; i--) {
+      String uidl = mailbox.getUID(messages[i]);
+      if (uidl != null && !skippedUidls.contains(uidl) && !index.contains(uidl)) {
+        missing.add(messages[i]);
+        missingUidls.add(uidl);
+      }
+    }
+    if (missing.isEmpty()) {
+      return true;
+    }
+    index(mailbox, folder, missing.toArray(new Message[0]));
+    missingUidls.stream().filter(uidl -> !index.contains(uidl)).forEach(skippedUidls::add);
+    return false;
+  }
+
+  private void index(Folder mailbox, String folder, Message[] messages) throws Exception {
+    // mails of watched folders are already indexed by sync
+    List<Message> missing = new ArrayList<>(messages.length);
+    for (Message message : messages) {
+      if (mailbox instanceof POP3Folder || !index.contains(MailFolderReader.getMessageId(mailbox, folder, message))) {
+        missing.add(message);
+      }
+    }
+    index.add(folderReader.readIndexDocs(mailbox, folder, missing.toArray(new Message[0])));
+  }
+
+  /**
+   * UIDs may have big gaps, so UID window below position grows until it has a batch of mails
+   *
+   * @return up to BATCH_SIZE mails with highest UIDs below given one, ordered by UID
+   */
+  private static Message[] findOlder(UIDFolder uidFolder, long belowUID) throws MessagingException {
+    long window = BATCH_SIZE;
+    while (true) {
+      long from = Math.max(1, belowUID - window);
+      Message[] messages = Arrays.stream(uidFolder.getMessagesByUID(from, belowUID - 1))
+        .filter(message -> message != null && getUID(uidFolder, message) < belowUID)
+        .toArray(Message[]::new);
+      if (messages.length >= BATCH_SIZE || from == 1) {
+        return Arrays.copyOfRange(messages, Math.max(0, messages.length - BATCH_SIZE), messages.length);
+      }
+      window = Math.min(window * 8, MAX_UID_WINDOW);
+    }
+  }
+
+  private static long getUIDNext(Folder mailbox, UIDFolder uidFolder) throws MessagingException {
+    long uidNext = uidFolder.getUIDNext();
+    if (uidNext > 0) {
+      return uidNext;
+    }
+    int count = mailbox.getMessageCount();
+    return count > 0 ? uidFolder.getUID(mailbox.getMessage(count)) + 1 : 1;
+  }
+
+  private static long getUID(UIDFolder uidFolder, Message message) {
+    try {
+      return uidFolder.getUID(message);
+    } catch (MessagingException ex) {
+      return -1;
+    }
+  }
+
+  private static List<String> listFolders(Store store) throws MessagingException {
+    List<String> folders = new ArrayList<>();
+    for (Folder folder : store.getDefaultFolder().list("*")) {
+      if ((folder.getType() & Folder.HOLDS_MESSAGES) != 0) {
+        folders.add(folder.getFullName());
+      }
+    }
+    return folders;
+  }
+}
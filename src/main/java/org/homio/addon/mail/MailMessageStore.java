@@ -0,0 +1,157 @@
+package org.homio.addon.mail;
+
+import lombok.Getter;
+import org.homio.addon.mail.MailService.MessageWrapper;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.function.IntSupplier;
+import java.util.function.Predicate;
+
+/**
+ * In-memory mail storage with constant-time lookup by id and per-folder 'newest first' ordering.
+ * Folders are capped, the oldest mails are evicted first. All collections are safe to read while sync is running.
+ * Search index and change feed are updated together with storage, so widgets query pages without scanning mail texts
+ * and receive only changed mails.
+ */
+public class MailMessageStore {
+
+  private static final Comparator<MessageWrapper> NEWEST_FIRST =
+    Comparator.comparing((MessageWrapper m) -> Objects.requireNonNullElse(m.getReceivedDate(), new Date(0)))
+      .reversed()
+      .thenComparing(MessageWrapper::getId);
+
+  private final Map<String, MessageWrapper> messagesById = new ConcurrentHashMap<>();
+  private final Map<String, NavigableSet<MessageWrapper>> folderMessages = new ConcurrentHashMap<>();
+  private final MailSearchIndex searchIndex = new MailSearchIndex();
+  @Getter
+  private final MailChangeFeed changeFeed = new MailChangeFeed();
+  private final IntSupplier folderCapacity;
+
+  public MailMessageStore(@NotNull IntSupplier folderCapacity) {
+    this.folderCapacity = folderCapacity;
+  }
+
+  public void add(@NotNull MessageWrapper message) {
+    NavigableSet<MessageWrapper> messages = getOrCreateFolder(message.getFolder());
+    // ids are scoped by folder, so existed mail is always in same folder
+    MessageWrapper existed = messagesById.put(message.getId(), message);
+    if (existed != null) {
+      messages.remove(existed);
+    }
+    messages.add(message);
+    searchIndex.add(message);
+    if (existed != null) {
+      changeFeed.changed(message.getFolder(), message.getId());
+    } else {
+      changeFeed.added(message.getFolder(), message.getId());
+    }
+    int capacity = folderCapacity.getAsInt();
+    while (messages.size() > capacity) {
+      MessageWrapper oldest = messages.pollLast();
+      if (oldest != null && messagesById.remove(oldest.getId(), oldest)) {
+        searchIndex.remove(oldest.getId());
+        changeFeed.removed(oldest.getFolder(), oldest.getId());
+      }
+    }
+  }
+
+  public @Nullable MessageWrapper get(@NotNull String id) {
+    return messagesById.get(id);
+  }
+
+  public @Nullable MessageWrapper remove(@NotNull String id) {
+    MessageWrapper message = messagesById.remove(id);
+    if (message != null) {
+      searchIndex.remove(id);
+      NavigableSet<MessageWrapper> messages = folderMessages.get(message.getFolder());
+      if (messages != null) {
+        messages.remove(message);
+      }
+      changeFeed.removed(message.getFolder(), id);
+    }
+    return message;
+  }
+
+  /**
+   * Notify widgets that flags of mail were changed
+   */
+  public void markChanged(@NotNull MessageWrapper message) {
+    changeFeed.changed(message.getFolder(), message.getId());
+  }
+
+  /**
+   * @return read-only live view of folder mails, newest first
+   */
+  public @NotNull NavigableSet<MessageWrapper> getFolderMessages(@NotNull String folder) {
+    NavigableSet<MessageWrapper> messages = folderMessages.get(folder);
+    return messages == null ? Collections.emptyNavigableSet() : Collections.unmodifiableNavigableSet(messages);
+  }
+
+  /**
+   * Filter, sort and cut single page of folder. Default 'newest first' order is read directly from folder set
+   */
+  public @NotNull MailQuery.Page query(@NotNull MailQuery query) {
+    Set<String> matchedIds = query.text() == null ? null : searchIndex.search(query.text());
+    Predicate<MessageWrapper> filter = query.filter().predicate;
+    if (matchedIds != null) {
+      filter = filter.and(message -> matchedIds.contains(message.getId()));
+    }
+    Predicate<MessageWrapper> afterCursor = query.afterCursor();
+    List<MessageWrapper> items = new ArrayList<>(query.limit());
+    int total = 0;
+    int remaining = 0;
+    if (query.isNaturalOrder()) {
+      for (MessageWrapper message : getFolderMessages(query.folder())) {
+        if (filter.test(message)) {
+          total++;
+          if (afterCursor.test(message)) {
+            remaining++;
+            if (items.size() < query.limit()) {
+              items.add(message);
+            }
+          }
+        }
+      }
+    } else {
+      List<MessageWrapper> matched = getFolderMessages(query.folder()).stream().filter(filter).toList();
+      total = matched.size();
+      List<MessageWrapper> afterCursorItems = matched.stream().filter(afterCursor).sorted(query.comparator()).toList();
+      remaining = afterCursorItems.size();
+      items.addAll(afterCursorItems.subList(0, Math.min(query.limit(), remaining)));
+    }
+    String nextCursor = remaining > items.size() ? query.cursorOf(items.get(items.size() - 1)) : null;
+    return new MailQuery.Page(items, total, nextCursor);
+  }
+
+  public void clearFolder(@NotNull String folder) {
+    NavigableSet<MessageWrapper> messages = folderMessages.remove(folder);
+    if (messages != null) {
+      for (MessageWrapper message : messages) {
+        if (messagesById.remove(message.getId(), message)) {
+          searchIndex.remove(message.getId());
+          changeFeed.removed(folder, message.getId());
+        }
+      }
+    }
+  }
+
+  public int size() {
+    return messagesById.size();
+  }
+
+  private NavigableSet<MessageWrapper> getOrCreateFolder(String folder) {
+    return folderMessages.computeIfAbsent(folder, f -> new ConcurrentSkipListSet<>(NEWEST_FIRST));
+  }
+}
@@ -0,0 +1,188 @@
+package org.homio.addon.mail;
+
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.pivovarit.function.ThrowingRunnable;
+import com.pivovarit.function.ThrowingSupplier;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import java.util.stream.Collectors;
+
+import static org.homio.api.util.JsonUtils.OBJECT_MAPPER;
+
+/**
+ * In-memory timers, counters and gauges of single MailEntity since service start. Recording is a few atomic
+ * operations, so it is done for every server round-trip and shown on entity page to tell which step of poll or
+ * send is slow
+ */
+public class MailMetrics {
+
+  private final Map<Op, Timer> timers = new EnumMap<>(Op.class);
+  private final Map<Counter, LongAdder> counters = new EnumMap<>(Counter.class);
+  private final Map<String, LongSupplier> gauges = new ConcurrentHashMap<>();
+
+  public MailMetrics() {
+    for (Op op : Op.values()) {
+      timers.put(op, new Timer());
+    }
+    for (Counter counter : Counter.values()) {
+      counters.put(counter, new LongAdder());
+    }
+  }
+
+  /**
+   * Measure action duration. Failed actions are measured as well
+   */
+  public <T> T time(@NotNull Op op, @NotNull ThrowingSupplier<T, Exception> action) throws Exception {
+    long start = System.nanoTime();
+    try {
+      return action.get();
+    } finally {
+      record(op, start);
+    }
+  }
+
+  public void run(@NotNull Op op, @NotNull ThrowingRunnable<Exception> action) throws Exception {
+    long start = System.nanoTime();
+    try {
+      action.run();
+    } finally {
+      record(op, start);
+    }
+  }
+
+  /**
+   * @param startNanos value of System.nanoTime() when operation started
+   */
+  public void record(@NotNull Op op, long startNanos) {
+    timers.get(op).record(System.nanoTime() - startNanos);
+  }
+
+  public void increment(@NotNull Counter counter, long delta) {
+    counters.get(counter).add(delta);
+  }
+
+  /**
+   * Value that is read only when metrics are requested, i.e. size of cache or queue
+   */
+  public void gauge(@NotNull String name, @NotNull LongSupplier value) {
+    gauges.put(name, value);
+  }
+
+  public long getCounter(@NotNull Counter counter) {
+    return counters.get(counter).sum();
+  }
+
+  public @NotNull ObjectNode toJson() {
+    ObjectNode result = OBJECT_MAPPER.createObjectNode();
+    ObjectNode timersNode = result.putObject("timers");
+    timers.forEach((op, timer) -> {
+      long count = timer.count.sum();
+      timersNode.putObject(op.name())
+        .put("count", count)
+        .put("avgMs", count == 0 ? 0 : toMillis(timer.totalNanos.sum() / count))
+        .put("maxMs", toMillis(timer.maxNanos.get()))
+        .put("lastMs", toMillis(timer.lastNanos.get()));
+    });
+    ObjectNode countersNode = result.putObject("counters");
+    counters.forEach((counter, value) -> countersNode.put(counter.name(), value.sum()));
+    ObjectNode gaugesNode = result.putObject("gauges");
+    gauges.forEach((name, value) -> gaugesNode.put(name, value.getAsLong()));
+    return result;
+  }
+
+  /**
+   * @return 'op: count x avg ms (max ms)' of operations that were executed at least once
+   */
+  public @NotNull String getTimersSummary() {
+    return timers.entrySet().stream()
+      .filter(entry -> entry.getValue().count.sum() > 0)
+      .map(entry -> {
+        Timer timer = entry.getValue();
+        long count = timer.count.sum();
+        return "%s: %dx%dms (max %dms)".formatted(entry.getKey(), count,
+          toMillis(timer.totalNanos.sum() / count), toMillis(timer.maxNanos.get()));
+      })
+      .collect(Collectors.joining(", "));
+  }
+
+  public @NotNull String getCountersSummary() {
+    return counters.entrySet().stream()
+      .map(entry -> entry.getKey() + ": " + entry.getValue().sum())
+      .collect(Collectors.joining(", "));
+  }
+
+  public @NotNull String getGaugesSummary() {
+    return gauges.entrySet().stream()
+      .sorted(Map.Entry.comparingByKey())
+      .map(entry -> entry.getKey() + ": " + entry.getValue().getAsLong())
+      .collect(Collectors.joining(", "));
+  }
+
+  private static long toMillis(long nanos) {
+    return TimeUnit.NANOSECONDS.toMillis(nanos);
+  }
+
+  public enum Op {
+    /**
+     * Connect and login to IMAP/POP3 server
+     */
+    connect,
+    open,
+    search,
+    /**
+     * Envelope, flags and part structure of new mails
+     */
+    prefetch,
+    /**
+     * Partial fetch of first text part for preview and full-text index, or TOP of POP3 mail
+     */
+    preview,
+    /**
+     * Body part of opened mail
+     */
+    body,
+    /**
+     * Attachment or inline image streamed to client or attachment cache
+     */
+    attachment,
+    /**
+     * Seen flags of cached mails, to detect changes made by other clients
+     */
+    flags,
+    /**
+     * MIME structure parse and body render
+     */
+    parse,
+    smtpConnect,
+    send
+  }
+
+  public enum Counter {
+    messagesSynced,
+    bytesFetched,
+    mailsSent,
+    errors
+  }
+
+  private static final class Timer {
+    private final LongAdder count = new LongAdder();
+    private final LongAdder totalNanos = new LongAdder();
+    private final LongAccumulator maxNanos = new LongAccumulator(Math::max, 0);
+    private final AtomicLong lastNanos = new AtomicLong();
+
+    private void record(long nanos) {
+      count.increment();
+      totalNanos.add(nanos);
+      maxNanos.accumulate(nanos);
+      lastNanos.set(nanos);
+    }
+  }
+}
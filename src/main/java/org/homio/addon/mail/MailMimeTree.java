@@ -0,0 +1,172 @@
+package org.homio.addon.mail;
+
+import jakarta.mail.Multipart;
+import jakarta.mail.Part;
+import jakarta.mail.internet.ContentType;
+import jakarta.mail.internet.MimePart;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Parts of mail collected by single recursive walk over MIME structure, at any nesting depth. For IMAP structure
+ * comes from prefetched BODYSTRUCTURE, so walk doesn't download content. Tree keeps only part descriptions
+ * addressed by IMAP section numbers, so it's cached with mail and content of required part is read on demand.
+ */
+public final class MailMimeTree {
+
+  private final List<MimeNode> parts;
+
+  private MailMimeTree(List<MimeNode> parts) {
+    this.parts = Collections.unmodifiableList(parts);
+  }
+
+  public static @NotNull MailMimeTree parse(@NotNull Part message) throws Exception {
+    List<MimeNode> parts = new ArrayList<>();
+    walk(message, "", parts);
+    return new MailMimeTree(parts);
+  }
+
+  /**
+   * Find part by IMAP section number, i.e. '2.1'
+   */
+  public static @Nullable Part findPart(@NotNull Part root, @NotNull String section) throws Exception {
+    Part part = root;
+    for (String index : section.split("\\.")) {
+      if (!part.isMimeType("multipart/*")) {
+        // single part message body is addressed as section '1'
+        return section.equals("1") ? part : null;
+      }
+      Multipart multipart = (Multipart) part.getContent();
+      int i = Integer.parseInt(index) - 1;
+      if (i < 0 || i >= multipart.getCount()) {
+        return null;
+      }
+      part = multipart.getBodyPart(i);
+    }
+    return part;
+  }
+
+  /**
+   * @return all leaf parts in message order
+   */
+  public @NotNull List<MimeNode> getParts() {
+    return parts;
+  }
+
+  /**
+   * @return first plain text body part
+   */
+  public @Nullable MimeNode getText() {
+    return first(Kind.text);
+  }
+
+  /**
+   * @return first html body part
+   */
+  public @Nullable MimeNode getHtml() {
+    return first(Kind.html);
+  }
+
+  public @NotNull List<MimeNode> getInlineImages() {
+    return parts.stream().filter(part -> part.kind == Kind.inline).toList();
+  }
+
+  public @NotNull List<MimeNode> getAttachments() {
+    return parts.stream().filter(part -> part.kind == Kind.attachment).toList();
+  }
+
+  public @NotNull Set<String> getAttachmentNames() {
+    Set<String> names = new LinkedHashSet<>();
+    for (MimeNode part : parts) {
+      if (part.kind == Kind.attachment && part.fileName != null) {
+        names.add(part.fileName);
+      }
+    }
+    return names;
+  }
+
+  public @Nullable MimeNode getPart(@NotNull String section) {
+    return parts.stream().filter(part -> part.section.equals(section)).findFirst().orElse(null);
+  }
+
+  private @Nullable MimeNode first(Kind kind) {
+    return parts.stream().filter(part -> part.kind == kind).findFirst().orElse(null);
+  }
+
+  private static void walk(Part part, String section, List<MimeNode> parts) throws Exception {
+    if (part.isMimeType("multipart/*")) {
+      Multipart multipart = (Multipart) part.getContent();
+      for (int i = 0; i < multipart.getCount(); i++) {
+        walk(multipart.getBodyPart(i), section.isEmpty() ? String.valueOf(i + 1) : section + "." + (i + 1), parts);
+      }
+      return;
+    }
+    // non-multipart message body is addressed as section '1'
+    parts.add(describe(part, section.isEmpty() ? "1" : section));
+  }
+
+  private static MimeNode describe(Part part, String section) throws Exception {
+    String contentType = "application/octet-stream";
+    String charset = null;
+    try {
+      ContentType type = new ContentType(part.getContentType());
+      contentType = type.getBaseType().toLowerCase(Locale.ROOT);
+      charset = type.getParameter("charset");
+    } catch (Exception ignore) {
+      // malformed header, part is treated as binary
+    }
+    String encoding = null;
+    String contentId = null;
+    if (part instanceof MimePart mimePart) {
+      encoding = mimePart.getEncoding();
+      contentId = mimePart.getContentID();
+      if (contentId != null) {
+        contentId = contentId.replace("<", "").replace(">", "").trim();
+      }
+    }
+    String fileName;
+    try {
+      fileName = part.getFileName();
+    } catch (Exception ex) {
+      fileName = null;
+    }
+    String disposition = part.getDisposition();
+    Kind kind;
+    if (Part.ATTACHMENT.equalsIgnoreCase(disposition) || contentType.equals("message/rfc822")) {
+      kind = Kind.attachment;
+    } else if (contentType.startsWith("image/") && contentId != null) {
+      kind = Kind.inline;
+    } else if (contentType.equals("text/plain") && fileName == null) {
+      kind = Kind.text;
+    } else if (contentType.equals("text/html") && fileName == null) {
+      kind = Kind.html;
+    } else {
+      kind = fileName == null ? Kind.other : Kind.attachment;
+    }
+    if (kind == Kind.attachment && fileName == null && contentType.equals("message/rfc822")) {
+      fileName = "message-" + section + ".eml";
+    }
+    return new MimeNode(section, contentType, charset, encoding, fileName, contentId, part.getSize(), kind);
+  }
+
+  public enum Kind {
+    text, html, inline, attachment, other
+  }
+
+  /**
+   * @param section     IMAP section number
+   * @param contentType lower-cased mime type without parameters
+   * @param size        encoded size in bytes or -1 if unknown
+   */
+  public record MimeNode(@NotNull String section, @NotNull String contentType, @Nullable String charset,
+                         @Nullable String encoding, @Nullable String fileName, @Nullable String contentId, int size,
+                         @NotNull Kind kind) {
+  }
+}
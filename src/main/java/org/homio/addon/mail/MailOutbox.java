@@ -0,0 +1,342 @@
+package org.homio.addon.mail;
+
+import com.pivovarit.function.ThrowingFunction;
+import jakarta.mail.MessagingException;
+import jakarta.mail.SendFailedException;
+import jakarta.mail.Session;
+import jakarta.mail.internet.AddressException;
+import jakarta.mail.internet.MimeMessage;
+import jakarta.mail.util.SharedFileInputStream;
+import lombok.extern.log4j.Log4j2;
+import org.eclipse.angus.mail.smtp.SMTPSendFailedException;
+import org.homio.api.Context;
+import org.homio.api.ContextBGP;
+import org.homio.api.util.CommonUtils;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+/**
+ * Outbound mails of single MailEntity. Callers only enqueue mail and get future back, worker drains ready mails
+ * in batches over single SMTP connection, respects send rate limit and retries transient failures with
+ * exponential backoff. Queued mails are written to spool directory (if enabled) and re-queued after restart.
+ */
+@Log4j2
+public class MailOutbox {
+
+  private static final int BATCH_SIZE = 10;
+  private static final int MAX_ATTEMPTS = 6;
+  private static final Duration RETRY_DELAY = Duration.ofSeconds(30);
+  private static final Duration MAX_RETRY_DELAY = Duration.ofHours(1);
+  private static final AtomicLong SEQUENCE = new AtomicLong();
+
+  private final Context context;
+  private final MailEntity entity;
+  private final MailTransportPool transportPool;
+  private final Path spoolPath;
+  private final DelayQueue<OutboundMail> queue = new DelayQueue<>();
+
+  private ContextBGP.ThreadContext<Void> worker;
+  private volatile boolean stopped;
+  // queued, retried and currently sent mails. Guarded by this
+  private int pending;
+  // token bucket to not exceed 'mails per minute' rate limit
+  private double sendTokens = BATCH_SIZE;
+  private long lastRefill = System.currentTimeMillis();
+
+  public MailOutbox(@NotNull Context context, @NotNull MailEntity entity, @NotNull MailTransportPool transportPool) {
+    this.context = context;
+    this.entity = entity;
+    this.transportPool = transportPool;
+    this.spoolPath = CommonUtils.getFilesPath().resolve("mail").resolve("outbox").resolve(entity.getEntityID());
+  }
+
+  public synchronized void start() {
+    if (worker != null) {
+      return;
+    }
+    restoreSpool();
+    worker =
+      context
+        .bgp()
+        .builder("mail-outbox-" + entity.getEntityID())
+        .execute(this::drain);
+  }
+
+  /**
+   * Mails that are not spooled are lost, so fail their futures to not leave callers waiting forever. Spooled
+   * mails are sent after restart, so their futures stay pending instead of reporting failure
+   */
+  public synchronized void stop() {
+    stopped = true;
+    ContextBGP.cancel(worker);
+    int deferred = 0;
+    for (OutboundMail mail : queue) {
+      if (mail.spoolFile == null) {
+        mail.future.completeExceptionally(new IllegalStateException("Mail service stopped"));
+      } else {
+        deferred++;
+      }
+    }
+    queue.clear();
+    if (deferred > 0) {
+      log.info("[{}]: {} spooled mails will be sent after restart", entity.getEntityID(), deferred);
+    }
+  }
+
+  /**
+   * Queue mail for sending
+   *
+   * @return future completed with Message-ID when server accepted mail
+   * @throws IllegalStateException if outbox is full or stopped
+   */
+  public @NotNull CompletableFuture<String> enqueue(@NotNull ThrowingFunction<Session, MimeMessage, Exception> messageBuilder)
+    throws Exception {
+    // slot is reserved before mail is built, so concurrent callers can't overfill outbox
+    synchronized (this) {
+      if (pending >= entity.getOutboxCapacity()) {
+        throw new IllegalStateException("Mail outbox is full. Queued mails: " + pending);
+      }
+      pending++;
+    }
+    OutboundMail mail;
+    try {
+      MimeMessage message = messageBuilder.apply(transportPool.getSession());
+      message.saveChanges();
+      mail = new OutboundMail(message.getMessageID());
+      if (entity.isSpoolOutbox()) {
+        mail.spoolFile = spoolPath.resolve("%d-%d.eml".formatted(System.currentTimeMillis(), SEQUENCE.incrementAndGet()));
+        Files.createDirectories(spoolPath);
+        try (OutputStream stream = Files.newOutputStream(mail.spoolFile)) {
+          message.writeTo(stream);
+        }
+      } else {
+        mail.message = message;
+      }
+    } catch (Exception ex) {
+      released();
+      throw ex;
+    }
+    synchronized (this) {
+      if (stopped && mail.spoolFile == null) {
+        pending--;
+        throw new IllegalStateException("Mail service stopped");
+      }
+      // spooled mail of stopped outbox stays on disk and is sent after restart
+      if (!stopped) {
+        queue.add(mail);
+      }
+    }
+    return mail.future;
+  }
+
+  public synchronized int size() {
+    return pending;
+  }
+
+  private void restoreSpool() {
+    if (!Files.isDirectory(spoolPath)) {
+      return;
+    }
+    try (Stream<Path> files = Files.list(spoolPath)) {
+      files.filter(file -> file.getFileName().toString().endsWith(".eml")).sorted().forEach(file -> {
+        OutboundMail mail = new OutboundMail(null);
+        mail.spoolFile = file;
+        queue.add(mail);
+        pending++;
+      });
+    } catch (IOException ex) {
+      log.error("[{}]: Unable to read mail outbox spool {}", entity.getEntityID(), spoolPath, ex);
+    }
+    if (!queue.isEmpty()) {
+      log.info("[{}]: Restored {} unsent mails from outbox spool", entity.getEntityID(), queue.size());
+    }
+  }
+
+  private void drain() throws InterruptedException {
+    while (!stopped) {
+      OutboundMail first = queue.poll(1, TimeUnit.MINUTES);
+      if (first == null) {
+        continue;
+      }
+      int permits = acquireSendTokens();
+      List<OutboundMail> batch = new ArrayList<>(permits);
+      batch.add(first);
+      queue.drainTo(batch, permits - 1);
+      try {
+        sendBatch(batch);
+      } catch (Exception ex) {
+        log.error("[{}]: Unexpected error while sending mails", entity.getEntityID(), ex);
+        batch.forEach(mail -> retryOrFail(mail, ex));
+      }
+    }
+  }
+
+  private void sendBatch(List<OutboundMail> batch) {
+    List<OutboundMail> loaded = new ArrayList<>(batch.size());
+    List<MimeMessage> messages = new ArrayList<>(batch.size());
+    for (OutboundMail mail : batch) {
+      try {
+        messages.add(mail.load(transportPool.getSession()));
+        loaded.add(mail);
+      } catch (Exception ex) {
+        log.error("[{}]: Unable to read queued mail {}", entity.getEntityID(), mail.spoolFile, ex);
+        mail.fail(ex);
+        released();
+      }
+    }
+    List<MessagingException> errors = transportPool.send(messages);
+    for (int i = 0; i < loaded.size(); i++) {
+      OutboundMail mail = loaded.get(i);
+      mail.unload();
+      MessagingException error = errors.get(i);
+      if (error == null) {
+        log.info("[{}]: Mail {} sent", entity.getEntityID(), mail.messageID);
+        mail.complete();
+        released();
+      } else {
+        retryOrFail(mail, error);
+      }
+    }
+  }
+
+  private void retryOrFail(OutboundMail mail, Exception error) {
+    mail.unload();
+    if (stopped) {
+      // spooled mail is picked up again on next start
+      if (mail.spoolFile == null) {
+        mail.future.completeExceptionally(error);
+      }
+      return;
+    }
+    mail.attempts++;
+    if (isPermanent(error) || mail.attempts >= MAX_ATTEMPTS) {
+      log.error("[{}]: Unable to send mail {} after {} attempts: {}", entity.getEntityID(), mail.messageID,
+        mail.attempts, error.getMessage());
+      mail.fail(error);
+      released();
+      return;
+    }
+    long delay = Math.min(RETRY_DELAY.toMillis() << (mail.attempts - 1), MAX_RETRY_DELAY.toMillis());
+    log.warn("[{}]: Unable to send mail {}. Retry in {}s: {}", entity.getEntityID(), mail.messageID,
+      delay / 1000, error.getMessage());
+    mail.notBefore = System.currentTimeMillis() + delay;
+    queue.add(mail);
+  }
+
+  private synchronized void released() {
+    pending--;
+  }
+
+  /**
+   * Blocks until at least one mail may be sent
+   *
+   * @return number of mails allowed to send right now
+   */
+  private int acquireSendTokens() throws InterruptedException {
+    while (true) {
+      double rate = Math.max(1, entity.getSendRateLimit()) / 60000D;
+      long now = System.currentTimeMillis();
+      sendTokens = Math.min(Math.min(entity.getSendRateLimit(), BATCH_SIZE), sendTokens + (now - lastRefill) * rate);
+      lastRefill = now;
+      if (sendTokens >= 1) {
+        int permits = (int) sendTokens;
+        sendTokens -= permits;
+        return permits;
+      }
+      Thread.sleep((long) Math.ceil((1 - sendTokens) / rate));
+    }
+  }
+
+  /**
+   * Rejected recipients or 5xx response wouldn't succeed on retry
+   */
+  private static boolean isPermanent(Exception error) {
+    if (error instanceof SMTPSendFailedException smtpError) {
+      return smtpError.getReturnCode() >= 500;
+    }
+    if (error instanceof SendFailedException sendError) {
+      return sendError.getValidUnsentAddresses() == null || sendError.getValidUnsentAddresses().length == 0;
+    }
+    return error instanceof AddressException;
+  }
+
+  private static final class OutboundMail implements Delayed {
+    private final CompletableFuture<String> future = new CompletableFuture<>();
+    private @Nullable String messageID;
+    private @Nullable MimeMessage message;
+    private @Nullable Path spoolFile;
+    private @Nullable SharedFileInputStream spoolStream;
+    private int attempts;
+    private long notBefore = System.currentTimeMillis();
+
+    private OutboundMail(@Nullable String messageID) {
+      this.messageID = messageID;
+    }
+
+    private MimeMessage load(Session session) throws Exception {
+      if (spoolFile == null) {
+        return message;
+      }
+      // shared stream reads attachments directly from spool file during sending
+      spoolStream = new SharedFileInputStream(spoolFile.toFile());
+      MimeMessage spooled = new MimeMessage(session, spoolStream);
+      messageID = spooled.getMessageID();
+      return spooled;
+    }
+
+    private void unload() {
+      if (spoolStream != null) {
+        try {
+          spoolStream.close();
+        } catch (IOException ignore) {
+        }
+        spoolStream = null;
+      }
+    }
+
+    private void complete() {
+      deleteSpoolFile();
+      future.complete(messageID);
+    }
+
+    private void fail(Exception error) {
+      unload();
+      deleteSpoolFile();
+      future.completeExceptionally(error);
+    }
+
+    private void deleteSpoolFile() {
+      if (spoolFile != null) {
+        try {
+          Files.deleteIfExists(spoolFile);
+        } catch (IOException ex) {
+          log.warn("Unable to delete spooled mail {}: {}", spoolFile, ex.getMessage());
+        }
+      }
+    }
+
+    @Override
+    public long getDelay(@NotNull TimeUnit unit) {
+      return unit.convert(notBefore - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public int compareTo(@NotNull Delayed other) {
+      return Long.compare(notBefore, ((OutboundMail) other).notBefore);
+    }
+  }
+}
@@ -0,0 +1,203 @@
+package org.homio.addon.mail;
+
+import com.pivovarit.function.ThrowingFunction;
+import lombok.extern.log4j.Log4j2;
+import org.homio.api.Context;
+import org.homio.api.ContextBGP;
+import org.jetbrains.annotations.NotNull;
+
+import java.time.Duration;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * Polls mail folders with adaptive interval per folder. Interval of folder drops to minimum as soon as poll finds
+ * new mails in it and doubles after every quiet poll up to folder maximum, so idle folders are polled rarely and
+ * busy ones don't lag, even in same account. Folders that are due at about same time are polled together. Every
+ * delay gets random jitter, so accounts that started together don't poll server at same moment. Folder set and
+ * maximum intervals are re-read while waiting, so widget and settings changes apply without restarting scheduler
+ */
+@Log4j2
+public class MailPollScheduler {
+
+  private static final Duration MIN_INTERVAL = Duration.ofSeconds(10);
+  // interval after new mails is fraction of maximum, so account configured to poll rarely stays cheap
+  private static final int MIN_INTERVAL_DIVIDER = 8;
+  private static final double JITTER = 0.2;
+  // how often waiting poller re-reads folders and max intervals
+  private static final long CONFIG_CHECK_MS = Duration.ofSeconds(10).toMillis();
+  // folders due within this time are polled together with first due folder
+  private static final long BATCH_WINDOW_MS = MIN_INTERVAL.toMillis() / 2;
+
+  private final Context context;
+  private final String entityID;
+  private final Supplier<Set<String>> folders;
+  private final Function<String, Duration> maxInterval;
+  private final ThrowingFunction<Set<String>, Map<String, Integer>, Exception> poll;
+  private final Object lock = new Object();
+  private final Map<String, FolderSchedule> schedules = new ConcurrentHashMap<>();
+
+  private ContextBGP.ThreadContext<Void> pollerThread;
+  private volatile boolean stopped;
+  private volatile boolean pollNow;
+  private long initialPoll;
+
+  /**
+   * @param folders     folders to poll
+   * @param maxInterval interval for quiet folder
+   * @param poll        poll action, returns number of new mails by folder
+   */
+  public MailPollScheduler(@NotNull Context context, @NotNull String entityID, @NotNull Supplier<Set<String>> folders,
+                           @NotNull Function<String, Duration> maxInterval,
+                           @NotNull ThrowingFunction<Set<String>, Map<String, Integer>, Exception> poll) {
+    this.context = context;
+    this.entityID = entityID;
+    this.folders = folders;
+    this.maxInterval = maxInterval;
+    this.poll = poll;
+  }
+
+  public void start(@NotNull Duration initialDelay) {
+    initialPoll = System.currentTimeMillis() + initialDelay.toMillis();
+    pollerThread =
+      context
+        .bgp()
+        .builder("mail-poll-" + entityID)
+        .execute(this::run);
+  }
+
+  public void stop() {
+    stopped = true;
+    synchronized (lock) {
+      lock.notifyAll();
+    }
+    ContextBGP.cancel(pollerThread);
+  }
+
+  /**
+   * Poll all folders as soon as possible and continue with minimal interval, i.e. when user opens mail widget
+   */
+  public void pollNow() {
+    pollNow = true;
+    synchronized (lock) {
+      lock.notifyAll();
+    }
+  }
+
+  /**
+   * @return shortest current interval among folders, 0 if nothing is polled
+   */
+  public long getInterval() {
+    return schedules.values().stream().mapToLong(schedule -> schedule.interval).min().orElse(0);
+  }
+
+  private void run() throws InterruptedException {
+    while (!stopped) {
+      if (!waitForDueFolders()) {
+        return;
+      }
+      boolean requested = pollNow;
+      pollNow = false;
+      long now = System.currentTimeMillis();
+      Set<String> due = new HashSet<>();
+      schedules.forEach((folder, schedule) -> {
+        if (requested || schedule.nextPoll <= now + BATCH_WINDOW_MS) {
+          due.add(folder);
+        }
+      });
+      Map<String, Integer> newMails = Map.of();
+      try {
+        newMails = poll.apply(due);
+      } catch (Exception ex) {
+        log.error("[{}]: Error while polling mail server", entityID, ex);
+      }
+      long polled = System.currentTimeMillis();
+      for (String folder : due) {
+        FolderSchedule schedule = schedules.get(folder);
+        if (schedule == null) {
+          continue;
+        }
+        long max = getMaxInterval(folder);
+        int found = newMails.getOrDefault(folder, 0);
+        schedule.interval = found > 0 || requested ? getMinInterval(max) : Math.min(max, schedule.interval * 2);
+        schedule.nextPoll = polled + schedule.interval + jitter(schedule.interval);
+        log.debug("[{}]: Found {} new mails in {}. Next poll in {}s", entityID, found, folder,
+          (schedule.nextPoll - polled) / 1000);
+      }
+    }
+  }
+
+  /**
+   * @return false if scheduler was stopped while waiting
+   */
+  private boolean waitForDueFolders() throws InterruptedException {
+    synchronized (lock) {
+      while (!stopped && !pollNow) {
+        long nextPoll = refreshSchedules();
+        long remaining = nextPoll - System.currentTimeMillis();
+        if (remaining <= 0) {
+          break;
+        }
+        lock.wait(Math.min(remaining, CONFIG_CHECK_MS));
+      }
+    }
+    if (!stopped) {
+      refreshSchedules();
+    }
+    return !stopped;
+  }
+
+  /**
+   * Add new folders, drop removed ones and cut backoff of folders which maximum was reduced in settings
+   *
+   * @return time of next poll
+   */
+  private long refreshSchedules() {
+    Set<String> current = folders.get();
+    schedules.keySet().retainAll(current);
+    long now = System.currentTimeMillis();
+    long nextPoll = Long.MAX_VALUE;
+    for (String folder : current) {
+      long max = getMaxInterval(folder);
+      FolderSchedule schedule = schedules.computeIfAbsent(folder, f -> {
+        long interval = getMinInterval(max);
+        long start = Math.max(now, initialPoll) + ThreadLocalRandom.current().nextLong(MIN_INTERVAL.toMillis());
+        return new FolderSchedule(interval, start);
+      });
+      if (schedule.interval > max) {
+        schedule.interval = max;
+        schedule.nextPoll = Math.min(schedule.nextPoll, now + max);
+      }
+      nextPoll = Math.min(nextPoll, schedule.nextPoll);
+    }
+    return nextPoll;
+  }
+
+  private long getMaxInterval(String folder) {
+    return Math.max(MIN_INTERVAL.toMillis(), maxInterval.apply(folder).toMillis());
+  }
+
+  private static long getMinInterval(long maxInterval) {
+    return Math.min(maxInterval, Math.max(MIN_INTERVAL.toMillis(), maxInterval / MIN_INTERVAL_DIVIDER));
+  }
+
+  private static long jitter(long interval) {
+    long bound = (long) (interval * JITTER);
+    return bound <= 0 ? 0 : ThreadLocalRandom.current().nextLong(-bound / 2, bound / 2 + 1);
+  }
+
+  private static final class FolderSchedule {
+    private volatile long interval;
+    private volatile long nextPoll;
+
+    private FolderSchedule(long interval, long nextPoll) {
+      this.interval = interval;
+      this.nextPoll = nextPoll;
+    }
+  }
+}
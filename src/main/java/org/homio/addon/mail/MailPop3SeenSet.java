@@ -0,0 +1,89 @@
+package org.homio.addon.mail;
+
+import lombok.extern.log4j.Log4j2;
+import org.homio.api.util.CommonUtils;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * UIDLs of POP3 mails that were already synced. POP3 has neither search nor received date, so new mails are found
+ * by diff of server UIDL list against this set. Set is persisted to not reload mailbox after restart and contains
+ * only UIDLs that are still on server, so it never outgrows mailbox
+ */
+@Log4j2
+public class MailPop3SeenSet {
+
+  private final Path file;
+  private Set<String> uidls;
+  private boolean changed;
+
+  public MailPop3SeenSet(@NotNull String entityID) {
+    this(CommonUtils.getFilesPath().resolve("mail").resolve("pop3").resolve(entityID + ".uidl"));
+  }
+
+  MailPop3SeenSet(@NotNull Path file) {
+    this.file = file;
+  }
+
+  /**
+   * @return false if mailbox was never synced by UIDL
+   */
+  public boolean exists() {
+    return Files.exists(file);
+  }
+
+  public synchronized boolean contains(@NotNull String uidl) {
+    return getUidls().contains(uidl);
+  }
+
+  public synchronized void add(@NotNull Collection<String> synced) {
+    changed |= getUidls().addAll(synced);
+  }
+
+  /**
+   * Forget mails that were deleted from server
+   */
+  public synchronized void retain(@NotNull Collection<String> serverUidls) {
+    changed |= getUidls().retainAll(serverUidls);
+  }
+
+  /**
+   * Write set if it changed. File is created even for empty mailbox, so next sync isn't treated as first one
+   */
+  public synchronized void save() {
+    if (!changed && exists()) {
+      return;
+    }
+    try {
+      Files.createDirectories(file.getParent());
+      Path tmpFile = file.resolveSibling(file.getFileName() + ".tmp");
+      Files.write(tmpFile, getUidls(), StandardCharsets.UTF_8);
+      Files.move(tmpFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      changed = false;
+    } catch (IOException ex) {
+      log.warn("Unable to save POP3 UIDL list {}: {}", file, ex.getMessage());
+    }
+  }
+
+  private Set<String> getUidls() {
+    if (uidls == null) {
+      uidls = new HashSet<>();
+      if (exists()) {
+        try {
+          Files.readAllLines(file, StandardCharsets.UTF_8).stream().filter(line -> !line.isBlank()).forEach(uidls::add);
+        } catch (IOException ex) {
+          log.warn("Unable to read POP3 UIDL list {}: {}", file, ex.getMessage());
+        }
+      }
+    }
+    return uidls;
+  }
+}
@@ -0,0 +1,243 @@
+package org.homio.addon.mail;
+
+import jakarta.mail.Message;
+import jakarta.mail.MessagingException;
+import jakarta.mail.Part;
+import jakarta.mail.Session;
+import jakarta.mail.internet.MimeMessage;
+import jakarta.mail.internet.MimeUtility;
+import org.eclipse.angus.mail.imap.IMAPFolder;
+import org.eclipse.angus.mail.imap.IMAPMessage;
+import org.eclipse.angus.mail.imap.protocol.BODY;
+import org.eclipse.angus.mail.pop3.POP3Message;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.jsoup.Jsoup;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.regex.Pattern;
+
+/**
+ * Builds short mail preview without downloading whole message. For IMAP only first bytes of first text part
+ * are fetched with BODY.PEEK[section]&lt;0.N&gt; and decoded as stream, so neither part nor decoded text is ever
+ * held whole. Mails without plain text get preview from beginning of html part with markup stripped. Html window
+ * grows until it has enough text, because head and styles of newsletters may take tens of kilobytes. Full-text
+ * index reads whole text part with the same single fetch
+ */
+public final class MailPreviewReader {
+
+  public static final int PREVIEW_LENGTH = 256;
+  // text part is indexed whole. Index keeps limited number of terms per mail, which is reached long before
+  // this size, so larger parts are cut to not download attachment-sized text
+  public static final int MAX_FULL_TEXT_BYTES = 1024 * 1024;
+  private static final int PREVIEW_FETCH_BYTES = 2048;
+  // html preview window doesn't depend on requested text length
+  private static final int HTML_FETCH_BYTES = 8 * 1024;
+  private static final int MAX_HTML_FETCH_BYTES = 64 * 1024;
+  private static final String ELLIPSIS = "...";
+  private static final Pattern WHITESPACES = Pattern.compile("\\s+");
+  // POP3 TOP returns raw lines, encoded body lines are up to 76 chars
+  private static final int RAW_LINE_LENGTH = 76;
+  // multipart preamble and headers of first part
+  private static final int TOP_EXTRA_LINES = 30;
+
+  private MailPreviewReader() {
+  }
+
+  public static @Nullable String readPreview(@NotNull Message message, @NotNull MailMimeTree tree) throws Exception {
+    return truncate(readText(message, tree, PREVIEW_LENGTH));
+  }
+
+  /**
+   * Read beginning of first text part, or text of html part if mail has no plain text, i.e. to build preview and
+   * full-text index entry with single partial fetch
+   *
+   * @param maxChars number of chars to read. Result may be a bit longer
+   */
+  public static @Nullable String readText(@NotNull Message message, @NotNull MailMimeTree tree, int maxChars)
+    throws Exception {
+    MailMimeTree.MimeNode textPart = tree.getText();
+    if (textPart != null) {
+      return readPart(message, textPart, maxChars);
+    }
+    MailMimeTree.MimeNode htmlPart = tree.getHtml();
+    if (htmlPart == null) {
+      return null;
+    }
+    String text = readHtmlText(message, htmlPart, Math.min(maxChars, PREVIEW_LENGTH));
+    return text == null || text.length() <= maxChars ? text : text.substring(0, maxChars);
+  }
+
+  /**
+   * Read whole first text part, or body text of whole html part if mail has no plain text, i.e. for full-text
+   * index. Parts larger than MAX_FULL_TEXT_BYTES are cut
+   */
+  public static @Nullable String readFullText(@NotNull Message message, @NotNull MailMimeTree tree) throws Exception {
+    MailMimeTree.MimeNode textPart = tree.getText();
+    if (textPart != null) {
+      return readPart(message, textPart, MAX_FULL_TEXT_BYTES);
+    }
+    MailMimeTree.MimeNode htmlPart = tree.getHtml();
+    if (htmlPart == null) {
+      return null;
+    }
+    PartText html = readPart(message, htmlPart, MAX_FULL_TEXT_BYTES, MAX_FULL_TEXT_BYTES);
+    return html == null ? null : Jsoup.parse(html.text()).body().text();
+  }
+
+  /**
+   * Fetch html window and extract body text. Window is enlarged 4 times while text is shorter than minChars
+   * and part isn't read to the end, but no more than MAX_HTML_FETCH_BYTES
+   */
+  private static @Nullable String readHtmlText(Message message, MailMimeTree.MimeNode htmlPart, int minChars)
+    throws Exception {
+    int fetchBytes = HTML_FETCH_BYTES;
+    while (true) {
+      PartText html = readPart(message, htmlPart, fetchBytes, fetchBytes);
+      if (html == null) {
+        return null;
+      }
+      // cut html is fine for jsoup, unclosed tags are closed by parser. Head and styles are not text of body
+      String text = Jsoup.parse(html.text()).body().text();
+      if (text.length() >= minChars || html.complete() || fetchBytes >= MAX_HTML_FETCH_BYTES) {
+        return text;
+      }
+      fetchBytes = Math.min(fetchBytes * 4, MAX_HTML_FETCH_BYTES);
+    }
+  }
+
+  private static @Nullable String readPart(Message message, MailMimeTree.MimeNode node, int maxChars)
+    throws Exception {
+    PartText text = readPart(message, node, maxChars, Math.min(getFetchBytes(maxChars), MAX_FULL_TEXT_BYTES));
+    return text == null ? null : text.text();
+  }
+
+  /**
+   * @param fetchBytes bytes of encoded part fetched from IMAP server. Other parts are already loaded
+   */
+  private static @Nullable PartText readPart(Message message, MailMimeTree.MimeNode node, int maxChars,
+                                             int fetchBytes) throws Exception {
+    if (message instanceof IMAPMessage imapMessage) {
+      return fetchPartial(imapMessage, node, maxChars, fetchBytes);
+    }
+    Part part = MailMimeTree.findPart(message, node.section());
+    return part == null ? null : new PartText(readChars(part.getInputStream(), getCharset(node.charset()), maxChars), true);
+  }
+
+  /**
+   * POP3 has no partial fetch of part, so headers and first lines of raw mail are loaded with TOP and parsed as
+   * truncated mail. Parts that start below these lines are missing in result
+   *
+   * @param maxChars number of text chars that should be readable from result
+   */
+  public static @NotNull MimeMessage readPop3Head(@NotNull POP3Message message, int maxChars) throws Exception {
+    // base64/quoted-printable take up to 1.37 bytes per byte of text
+    int lines = maxChars * 2 / RAW_LINE_LENGTH + TOP_EXTRA_LINES;
+    try (InputStream stream = message.top(lines)) {
+      return new MimeMessage((Session) null, stream);
+    }
+  }
+
+  /**
+   * @return approximate number of bytes that readText() downloads from server
+   */
+  public static int getFetchSize(@NotNull MailMimeTree tree, int maxChars) {
+    MailMimeTree.MimeNode part = tree.getText();
+    int fetchBytes = getFetchBytes(maxChars);
+    if (part == null) {
+      // html window is enlarged only for mails without text at the beginning
+      part = tree.getHtml();
+      fetchBytes = HTML_FETCH_BYTES;
+    }
+    if (part == null) {
+      return 0;
+    }
+    return part.size() < 0 ? fetchBytes : Math.min(part.size(), fetchBytes);
+  }
+
+  /**
+   * @return approximate number of bytes that readFullText() downloads from server
+   */
+  public static int getFullTextFetchSize(@NotNull MailMimeTree tree) {
+    MailMimeTree.MimeNode part = tree.getText() != null ? tree.getText() : tree.getHtml();
+    if (part == null) {
+      return 0;
+    }
+    return part.size() < 0 ? MAX_FULL_TEXT_BYTES : Math.min(part.size(), MAX_FULL_TEXT_BYTES);
+  }
+
+  /**
+   * Collapse whitespaces and cut text to preview length. Already truncated preview is returned as is
+   */
+  public static @Nullable String truncate(@Nullable String text) {
+    if (text == null) {
+      return null;
+    }
+    String preview = WHITESPACES.matcher(text).replaceAll(" ").strip();
+    if (preview.length() > PREVIEW_LENGTH + ELLIPSIS.length()) {
+      return preview.substring(0, PREVIEW_LENGTH) + ELLIPSIS;
+    }
+    return preview;
+  }
+
+  private static @Nullable PartText fetchPartial(IMAPMessage message, MailMimeTree.MimeNode part, int maxChars,
+                                                 int fetchBytes) throws MessagingException {
+    IMAPFolder folder = (IMAPFolder) message.getFolder();
+    int messageNumber = message.getMessageNumber();
+    BODY body = (BODY) folder.doCommand(protocol ->
+      protocol.peekBody(messageNumber, part.section(), 0, fetchBytes));
+    if (body == null || body.getByteArray() == null) {
+      return null;
+    }
+    InputStream raw = body.getByteArrayInputStream();
+    // server returns less than requested only at the end of part
+    boolean complete = body.getByteArray().getCount() < fetchBytes;
+    String encoding = part.encoding();
+    InputStream decoded = encoding == null ? raw : MimeUtility.decode(raw, encoding);
+    return new PartText(readChars(decoded, getCharset(part.charset()), maxChars), complete);
+  }
+
+  // encoded text takes more bytes than chars
+  private static int getFetchBytes(int maxChars) {
+    return Math.max(PREVIEW_FETCH_BYTES, maxChars * 8);
+  }
+
+  /**
+   * Read up to maxChars chars. Partially fetched base64/quoted-printable may be broken at the end, so keep
+   * everything that was decoded before failure. Stream is closed
+   */
+  private static String readChars(InputStream inputStream, Charset charset, int maxChars) {
+    StringBuilder builder = new StringBuilder();
+    char[] buffer = new char[Math.min(maxChars + 1, 8192)];
+    try (Reader reader = new InputStreamReader(inputStream, charset)) {
+      int read;
+      while (builder.length() <= maxChars
+             && (read = reader.read(buffer, 0, Math.min(buffer.length, maxChars + 1 - builder.length()))) > 0) {
+        builder.append(buffer, 0, read);
+      }
+    } catch (IOException ignore) {
+    }
+    return builder.toString();
+  }
+
+  /**
+   * @param complete whole part was read
+   */
+  private record PartText(String text, boolean complete) {
+  }
+
+  private static Charset getCharset(@Nullable String charset) {
+    try {
+      if (charset != null) {
+        return Charset.forName(MimeUtility.javaCharset(charset));
+      }
+    } catch (Exception ignore) {
+    }
+    return StandardCharsets.UTF_8;
+  }
+}
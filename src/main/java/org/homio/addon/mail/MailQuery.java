@@ -0,0 +1,131 @@
+package org.homio.addon.mail;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import lombok.RequiredArgsConstructor;
+import org.homio.addon.mail.MailService.MessageWrapper;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.Objects;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+/**
+ * Single page request of folder mails from widget. Cursor is opaque 'sort key + id' of last returned mail, so
+ * next page stays consistent while new mails arrive or old are removed.
+ *
+ * @param folder     mail folder
+ * @param text       words to search in subject, sender and preview
+ * @param filter     additional mail filter
+ * @param sortBy     sort field
+ * @param descending sort direction
+ * @param limit      max mails per page
+ * @param cursor     nextCursor of previous page, null for first page
+ */
+public record MailQuery(@NotNull String folder, @Nullable String text, @NotNull Filter filter, @NotNull SortBy sortBy,
+                        boolean descending, int limit, @Nullable String cursor) {
+
+  private static final int MAX_LIMIT = 1000;
+
+  /**
+   * @throws IllegalArgumentException if cursor wasn't issued by cursorOf()
+   */
+  public MailQuery {
+    if (cursor != null) {
+      decodeCursor(cursor);
+    }
+  }
+
+  public static @NotNull MailQuery of(@NotNull JsonNode params, @NotNull String defaultFolder) {
+    return new MailQuery(
+      params.hasNonNull("folder") ? params.get("folder").asText() : defaultFolder,
+      params.path("query").asText(null),
+      Filter.valueOf(params.path("filter").asText(Filter.all.name())),
+      SortBy.valueOf(params.path("sortBy").asText(SortBy.date.name())),
+      !"asc".equals(params.path("sortDir").asText("desc")),
+      Math.max(1, Math.min(MAX_LIMIT, params.path("limit").asInt(10))),
+      params.path("cursor").asText(null));
+  }
+
+  /**
+   * @return true if query reads folder in its natural 'newest first' order, so page may be read without sorting
+   */
+  public boolean isNaturalOrder() {
+    return sortBy == SortBy.date && descending;
+  }
+
+  /**
+   * Sort by requested field and direction, ties are ordered by id like in MailMessageStore
+   */
+  public @NotNull Comparator<MessageWrapper> comparator() {
+    Comparator<MessageWrapper> byKey = Comparator.comparing(sortBy.keyFn);
+    return (descending ? byKey.reversed() : byKey).thenComparing(MessageWrapper::getId);
+  }
+
+  /**
+   * @return filter of mails located after cursor in requested order
+   */
+  public @NotNull Predicate<MessageWrapper> afterCursor() {
+    if (cursor == null) {
+      return message -> true;
+    }
+    String[] keyAndId = decodeCursor(cursor);
+    String cursorKey = keyAndId[0];
+    String cursorId = keyAndId[1];
+    return message -> {
+      int result = sortBy.keyFn.apply(message).compareTo(cursorKey);
+      if (descending) {
+        result = -result;
+      }
+      return result == 0 ? message.getId().compareTo(cursorId) > 0 : result > 0;
+    };
+  }
+
+  public @NotNull String cursorOf(@NotNull MessageWrapper message) {
+    String key = sortBy.keyFn.apply(message) + '\u0000' + message.getId();
+    return Base64.getUrlEncoder().withoutPadding().encodeToString(key.getBytes(StandardCharsets.UTF_8));
+  }
+
+  private static String[] decodeCursor(String cursor) {
+    try {
+      String decoded = new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8);
+      int separator = decoded.lastIndexOf('\u0000');
+      if (separator >= 0) {
+        return new String[]{decoded.substring(0, separator), decoded.substring(separator + 1)};
+      }
+    } catch (IllegalArgumentException ignore) {
+    }
+    throw new IllegalArgumentException("Invalid mail page cursor: " + cursor);
+  }
+
+  /**
+   * @param items      mails of requested page
+   * @param total      number of mails matched query
+   * @param nextCursor cursor of next page or null if this is last page
+   */
+  public record Page(List<MessageWrapper> items, int total, @Nullable String nextCursor) {
+  }
+
+  @RequiredArgsConstructor
+  public enum Filter {
+    all(message -> true),
+    unread(message -> !message.isSeen()),
+    attachments(message -> message.getAttachments() != null && !message.getAttachments().isEmpty());
+    final Predicate<MessageWrapper> predicate;
+  }
+
+  @RequiredArgsConstructor
+  public enum SortBy {
+    // fixed width so string order equals time order
+    date(message -> "%019d".formatted(Objects.requireNonNullElse(message.getReceivedDate(), new Date(0)).getTime())),
+    sender(message -> Objects.toString(message.getSender(), "").toLowerCase(Locale.ROOT)),
+    subject(message -> Objects.toString(message.getSubject(), "").toLowerCase(Locale.ROOT));
+    private final Function<MessageWrapper, String> keyFn;
+  }
+}
@@ -0,0 +1,88 @@
+package org.homio.addon.mail;
+
+import org.homio.addon.mail.MailService.MessageWrapper;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.regex.Pattern;
+
+/**
+ * In-memory inverted index over subject, sender and preview of cached mails. Terms are kept sorted, so every
+ * query word matches as prefix of indexed words (i.e. 'inv' finds 'invoice').
+ */
+public class MailSearchIndex {
+
+  private static final Pattern TOKEN_SEPARATOR = Pattern.compile("[^\\p{L}\\p{N}]+");
+
+  private final ConcurrentSkipListMap<String, Set<String>> postings = new ConcurrentSkipListMap<>();
+  private final Map<String, Set<String>> termsById = new ConcurrentHashMap<>();
+
+  public void add(@NotNull MessageWrapper message) {
+    remove(message.getId());
+    Set<String> terms = new HashSet<>();
+    tokenize(message.getSubject(), terms);
+    tokenize(message.getSender(), terms);
+    tokenize(message.getPreview(), terms);
+    termsById.put(message.getId(), terms);
+    for (String term : terms) {
+      postings.computeIfAbsent(term, t -> ConcurrentHashMap.newKeySet()).add(message.getId());
+    }
+  }
+
+  public void remove(@NotNull String id) {
+    Set<String> terms = termsById.remove(id);
+    if (terms != null) {
+      for (String term : terms) {
+        postings.computeIfPresent(term, (t, ids) -> {
+          ids.remove(id);
+          return ids.isEmpty() ? null : ids;
+        });
+      }
+    }
+  }
+
+  /**
+   * @return ids of mails that contain every word of query, or null if query has no words
+   */
+  public @Nullable Set<String> search(@Nullable String query) {
+    Set<String> words = new HashSet<>();
+    tokenize(query, words);
+    Set<String> result = null;
+    for (String word : words) {
+      Set<String> matches = new HashSet<>();
+      for (Set<String> ids : postings.subMap(word, true, word + Character.MAX_VALUE, false).values()) {
+        if (result == null) {
+          matches.addAll(ids);
+        } else {
+          for (String id : ids) {
+            if (result.contains(id)) {
+              matches.add(id);
+            }
+          }
+        }
+      }
+      result = matches;
+      if (result.isEmpty()) {
+        break;
+      }
+    }
+    return result;
+  }
+
+  private static void tokenize(@Nullable String text, Set<String> terms) {
+    if (text == null || text.isEmpty()) {
+      return;
+    }
+    for (String token : TOKEN_SEPARATOR.split(text.toLowerCase(Locale.ROOT))) {
+      if (!token.isEmpty()) {
+        terms.add(token);
+      }
+    }
+  }
+}
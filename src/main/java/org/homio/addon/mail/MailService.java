@@ -3,70 +3,140 @@ package org.homio.addon.mail;
 import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.pivovarit.function.ThrowingBiConsumer;
 import com.pivovarit.function.ThrowingConsumer;
 import com.pivovarit.function.ThrowingFunction;
-import jakarta.mail.BodyPart;
+import jakarta.mail.Address;
+import jakarta.mail.FetchProfile;
 import jakarta.mail.Flags;
 import jakarta.mail.Folder;
 import jakarta.mail.Message;
 import jakarta.mail.MessagingException;
-import jakarta.mail.Multipart;
 import jakarta.mail.Part;
-import jakarta.mail.Session;
 import jakarta.mail.Store;
-import jakarta.mail.internet.MimeMessage;
-import jakarta.mail.search.ComparisonTerm;
+import jakarta.mail.UIDFolder;
 import jakarta.mail.search.FlagTerm;
-import jakarta.mail.search.ReceivedDateTerm;
-import jakarta.mail.search.SearchTerm;
+import lombok.AccessLevel;
 import lombok.Getter;
 import lombok.RequiredArgsConstructor;
+import lombok.Setter;
 import lombok.SneakyThrows;
-import org.eclipse.angus.mail.util.BASE64DecoderStream;
+import org.eclipse.angus.mail.imap.IMAPFolder;
+import org.eclipse.angus.mail.imap.IMAPStore;
+import org.eclipse.angus.mail.imap.protocol.Status;
+import org.eclipse.angus.mail.pop3.POP3Folder;
+import org.eclipse.angus.mail.pop3.POP3Message;
+import org.homio.addon.mail.MailFolderReader.FolderSyncState;
 import org.homio.api.Context;
 import org.homio.api.ContextBGP;
 import org.homio.api.model.JSON;
 import org.homio.api.service.EntityService;
 import org.homio.api.widget.CustomWidgetDataStore;
+import org.jsoup.Jsoup;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
+import java.io.ByteArrayInputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
 import java.time.Duration;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Base64;
-import java.util.Comparator;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Objects;
-import java.util.Properties;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.atomic.AtomicInteger;
-import java.util.function.Supplier;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BooleanSupplier;
+import java.util.function.Predicate;
 import java.util.stream.Collectors;
 
 import static org.homio.api.util.JsonUtils.OBJECT_MAPPER;
 
 public class MailService extends EntityService.ServiceInstance<MailEntity> {
 
-  private final Map<String, ThrowingConsumer<Store, Exception>> registeredHandlers = new HashMap<>();
+  private static final Duration IDLE_RECONCILE_INTERVAL = Duration.ofMinutes(10);
+  private static final Duration RECONCILE_FLAGS_INTERVAL = Duration.ofMinutes(5);
+  private static final Duration INDEX_BACKFILL_INTERVAL = Duration.ofSeconds(10);
+
+  private final @Getter MailMetrics metrics = new MailMetrics();
+  private final MailEventBus mailEvents;
   private final Map<String, WidgetInfo> widgetListeners = new ConcurrentHashMap<>();
+  private final Map<String, MailIdleListener> idleListeners = new ConcurrentHashMap<>();
 
-  private final Map<String, Set<MessageWrapper>> folderMessages = new ConcurrentHashMap<>();
-  private ContextBGP.ThreadContext<Void> mailListeners;
-  private Long lastCheckedTimestamp;
+  private final MailMessageStore messageStore = new MailMessageStore(() -> entity.getMaxMailsInFolder());
+  private final Map<String, FolderSyncState> folderSyncStates = new ConcurrentHashMap<>();
+  private final MailStorePool storePool;
+  private final MailTransportPool transportPool;
+  private final @Getter MailOutbox outbox;
+  private final MailUploads uploads = new MailUploads();
+  private final MailDiskCache diskCache;
+  private final MailFolderCounters folderCounters = new MailFolderCounters();
+  private final MailPop3SeenSet pop3SeenSet;
+  private final MailAttachmentCache attachmentCache;
+  private final @Nullable MailFullTextIndex fullTextIndex;
+  private final Map<String, Lock> folderLocks = new ConcurrentHashMap<>();
+  private final MailFolderReader folderReader;
+  private final @Nullable MailIndexBackfill indexBackfill;
+  private volatile MailPollScheduler poller;
+  private ContextBGP.ThreadContext<Void> storeKeepAlive;
+  private ContextBGP.ThreadContext<Void> indexBackfillJob;
+  private volatile boolean idleNotSupported;
 
   public MailService(@NotNull Context context, @NotNull MailEntity entity) {
     super(context, entity, false, "Mail");
+    this.storePool = new MailStorePool(entity, metrics);
+    this.mailEvents = new MailEventBus(entity.getEntityID());
+    this.transportPool = new MailTransportPool(entity, metrics);
+    this.outbox = new MailOutbox(context, entity, transportPool);
+    this.diskCache = new MailDiskCache(entity.getEntityID());
+    this.pop3SeenSet = new MailPop3SeenSet(entity.getEntityID());
+    this.attachmentCache = new MailAttachmentCache(entity.getEntityID(),
+      () -> entity.getAttachmentCacheSize() * 1024L * 1024L);
+    this.fullTextIndex = entity.isFullTextIndex() ? new MailFullTextIndex(entity.getEntityID()) : null;
+    this.folderReader = new MailFolderReader(entity, metrics, messageStore, folderSyncStates, pop3SeenSet,
+      fullTextIndex != null, this::removeLocally);
+    this.indexBackfill = fullTextIndex == null ? null
+      : new MailIndexBackfill(entity, storePool, fullTextIndex, folderReader);
+    metrics.gauge("mailsInMemory", messageStore::size);
+    metrics.gauge("pollIntervalSec", () -> poller == null ? 0 : poller.getInterval() / 1000);
+    metrics.gauge("outboxQueue", outbox::size);
+    metrics.gauge("storeConnections", storePool::getOpenConnections);
+    metrics.gauge("attachmentCacheBytes", attachmentCache::getSize);
+    if (fullTextIndex != null) {
+      metrics.gauge("fullTextIndexMails", fullTextIndex::size);
+    }
   }
 
   @Override
   public void destroy(boolean forRestart, @Nullable Exception ex) {
-    ContextBGP.cancel(mailListeners);
+    stopPoller();
+    ContextBGP.cancel(storeKeepAlive);
+    ContextBGP.cancel(indexBackfillJob);
+    stopIdleListeners(Set.of());
+    mailEvents.close();
+    outbox.stop();
+    uploads.close();
+    storePool.close();
+    transportPool.close();
   }
 
   @Override
@@ -76,36 +146,68 @@ public class MailService extends EntityService.ServiceInstance<MailEntity> {
 
   @Override
   protected void initialize() {
+    restoreFromDiskCache();
+    if (fullTextIndex == null) {
+      MailFullTextIndex.delete(entity.getEntityID());
+    } else if (fullTextIndex.size() == 0) {
+      fullTextIndex.load();
+    }
+    MailAttachments.deleteTempFiles();
+    outbox.start();
     connectToMailServerAndHandle(store -> null);
+    ContextBGP.cancel(storeKeepAlive);
+    storeKeepAlive =
+      context
+        .bgp()
+        .builder("mail-keep-alive-" + entity.getEntityID())
+        .delay(Duration.ofMinutes(1))
+        .interval(Duration.ofMinutes(1))
+        .execute(() -> {
+          storePool.keepAlive();
+          transportPool.evictIdle();
+          uploads.evictStale();
+          idleListeners.values().forEach(MailIdleListener::keepAlive);
+        });
+    ContextBGP.cancel(indexBackfillJob);
+    if (indexBackfill != null) {
+      indexBackfillJob =
+        context
+          .bgp()
+          .builder("mail-index-backfill-" + entity.getEntityID())
+          .delay(Duration.ofMinutes(1))
+          .interval(INDEX_BACKFILL_INTERVAL)
+          .execute(indexBackfill::run);
+    }
   }
 
-  @SneakyThrows
-  private <T> T connectToMailServerAndHandle(ThrowingFunction<Store, T, Exception> handler) {
-    Session session = getSession();
-
-    try (Store store = session.getStore()) {
-      store.connect(entity.getPop3Hostname(), entity.getPop3Port(),
-        entity.getPop3User(), entity.getPop3Password().asString());
-      return handler.apply(store);
+  private void restoreFromDiskCache() {
+    if (messageStore.size() > 0) {
+      return;
+    }
+    MailDiskCache.Content content = diskCache.load();
+    content.states().forEach((folder, state) -> folderSyncStates.put(folder, new FolderSyncState(state)));
+    content.messages().forEach(messageStore::add);
+    if (!content.messages().isEmpty()) {
+      log.info("[{}]: Restored {} mails from local cache", entity.getEntityID(), content.messages().size());
+      setWidgetDataToUI();
     }
   }
 
-  private @NotNull Session getSession() {
-    String baseProtocol = entity.getMailFetchProtocolType().name().toLowerCase();
-    String protocol = entity.getPop3Security() == MailEntity.Security.SSL ? baseProtocol.concat("s") : baseProtocol;
-
-    Properties props = new Properties();
-    props.setProperty("mail." + baseProtocol + ".starttls.enable", "true");
-    props.setProperty("mail.store.protocol", protocol);
-    Session session = Session.getInstance(props);
-    return session;
+  @SneakyThrows
+  private <T> T connectToMailServerAndHandle(ThrowingFunction<Store, T, Exception> handler) {
+    return storePool.execute(handler);
   }
 
   public void setWidgetDataStore(
     CustomWidgetDataStore widgetDataStore,
     @NotNull String widgetEntityID,
     @NotNull JSON widgetData) {
-    widgetListeners.put(widgetEntityID, new WidgetInfo(widgetDataStore, widgetData));
+    widgetListeners.put(widgetEntityID, new WidgetInfo(widgetDataStore, widgetData, new AtomicLong(-1)));
+    MailPollScheduler scheduler = poller;
+    if (scheduler != null) {
+      // user looks at mails, so refresh them and poll often for a while
+      scheduler.pollNow();
+    }
     createMailListenerIfRequire();
     setWidgetDataToUI();
   }
@@ -115,242 +217,808 @@ public class MailService extends EntityService.ServiceInstance<MailEntity> {
     createMailListenerIfRequire();
   }
 
-  private void createMailListenerIfRequire() {
-    if (registeredHandlers.isEmpty() && widgetListeners.isEmpty()) {
-      ContextBGP.cancel(mailListeners);
-      mailListeners = null;
+  private synchronized void createMailListenerIfRequire() {
+    if (mailEvents.isEmpty() && widgetListeners.isEmpty()) {
+      stopPoller();
+      stopIdleListeners(Set.of());
       return;
     }
-    if (mailListeners != null) {
+    boolean idleMode = isIdleMode();
+    if (idleMode) {
+      Set<String> folders = getIdleFolders();
+      stopIdleListeners(folders);
+      for (String folder : folders) {
+        idleListeners.computeIfAbsent(folder, f -> {
+          var listener = new MailIdleListener(context, entity, storePool, f,
+            name -> readMessagesFromServer(Set.of(name)), this::fallbackToPolling);
+          listener.start();
+          return listener;
+        });
+      }
+    }
+    if (poller != null) {
       return;
     }
-    mailListeners =
-      context
-        .bgp()
-        .builder("read-mails")
-        .delay(Duration.ofSeconds(10))
-        .interval(Duration.ofSeconds(entity.getPop3RefreshTime()))
-        .execute(() -> connectToMailServerAndHandle(store -> {
-          fireReadMessagesFromServer(store);
-          return 0;
-        }));
+    poller = new MailPollScheduler(context, entity.getEntityID(), this::getWatchedFolders, this::getMaxPollInterval,
+      this::readMessagesFromServer);
+    poller.start(Duration.ofSeconds(10));
+  }
+
+  /**
+   * Interval is read on every poll, so settings and listen mode changes apply to running poller
+   */
+  private Duration getMaxPollInterval(String folder) {
+    // folder with IDLE listener is polled only on startup and rarely in case some notification was lost
+    boolean idleFolder = isIdleMode() && idleListeners.containsKey(folder);
+    return idleFolder ? IDLE_RECONCILE_INTERVAL : Duration.ofSeconds(entity.getPop3RefreshTime());
+  }
+
+  /**
+   * Every IDLE listener holds own connection, so one connection is always left for sync and body fetches.
+   * Default folder is listened first, watched folders above limit are polled
+   */
+  private Set<String> getIdleFolders() {
+    Set<String> folders = new LinkedHashSet<>();
+    folders.add(entity.getDefFolder());
+    getWatchedFolders().stream().sorted().forEach(folders::add);
+    return folders.stream().limit(Math.max(0, entity.getMaxConnections() - 1)).collect(Collectors.toSet());
+  }
+
+  private synchronized void stopPoller() {
+    if (poller != null) {
+      poller.stop();
+      poller = null;
+    }
   }
 
-  private void fireReadMessagesFromServer(Store store) throws Exception {
+  private boolean isIdleMode() {
+    return !idleNotSupported
+           && entity.getListenMode() == MailEntity.ListenMode.IDLE
+           && entity.getMailFetchProtocolType() == MailEntity.FetchProtocolType.IMAP;
+  }
+
+  private synchronized void fallbackToPolling() {
+    if (!idleNotSupported) {
+      idleNotSupported = true;
+      stopIdleListeners(Set.of());
+      if (poller != null) {
+        poller.pollNow();
+      }
+      createMailListenerIfRequire();
+    }
+  }
+
+  private void stopIdleListeners(Set<String> keepFolders) {
+    idleListeners.entrySet().removeIf(entry -> {
+      if (!keepFolders.contains(entry.getKey())) {
+        entry.getValue().stop();
+        return true;
+      }
+      return false;
+    });
+  }
+
+  private Set<String> getWatchedFolders() {
     Set<String> folders = widgetListeners.values()
       .stream()
       .map(s -> s.widgetData.optString("folder", entity.getDefFolder()))
       .collect(Collectors.toSet());
     folders.add(entity.getDefFolder());
+    return folders;
+  }
+
+  /**
+   * Sync every folder on own pooled connection in parallel, bounded by account connection limit.
+   * Widgets are updated as soon as their folder is ready, so slow folder doesn't delay others
+   *
+   * @return number of new mails by folder
+   */
+  private Map<String, Integer> readMessagesFromServer(Set<String> folders) {
+    Map<String, Integer> newMails = new ConcurrentHashMap<>();
+    CompletableFuture<?>[] tasks = folders
+      .stream()
+      .map(folder -> MailSyncExecutor.submit(() -> newMails.put(folder, syncFolder(folder))))
+      .toArray(CompletableFuture[]::new);
+    CompletableFuture.allOf(tasks).join();
+
+    if (diskCache.requireCompaction()) {
+      diskCache.compact(getFolderStates(), messageStore);
+    }
+    if (fullTextIndex != null) {
+      fullTextIndex.compactIfRequire();
+    }
+    return newMails;
+  }
+
+  /**
+   * @return number of new mails
+   */
+  private int syncFolder(String folder) {
+    // polling job and IDLE notifications may fire simultaneously for same folder
+    Lock lock = folderLocks.computeIfAbsent(folder, f -> new ReentrantLock());
+    lock.lock();
     try {
-      for (String folder : folders) {
-        try (Folder mailbox = store.getFolder(folder)) {
-          mailbox.open(Folder.READ_ONLY);
-          Message[] messages;
-          if (lastCheckedTimestamp != null) {
-            SearchTerm searchTerm = new ReceivedDateTerm(ComparisonTerm.GT, new Date(lastCheckedTimestamp));
-            messages = mailbox.search(searchTerm);
-          } else {
-            messages = mailbox.getMessages();
-          }
-          var emails = folderMessages.computeIfAbsent(folder, k -> new LinkedHashSet<>());
-          AtomicInteger count = new AtomicInteger(0);
-          Arrays.stream(messages)
-            .sorted(Comparator.comparing((Message m) -> {
-                try {
-                  return m.getReceivedDate();
-                } catch (MessagingException e) {
-                  return new Date(0);
-                }
-              })
-              .reversed())
-            .limit(entity.getMaxMailCountToFetchOnStartup())
-            .forEach(message -> {
-              try {
-                var msg = new MessageWrapper(getMessageUID(message), message.getSubject(), folder, message.getFrom()[0].toString(),
-                  message.getDescription(), message.getMessageNumber(), message.getReceivedDate(), message.getSize(), message.isSet(Flags.Flag.SEEN),
-                  getAttachments(message));
-                if (message.isMimeType("multipart/*")) {
-                  Multipart multipart = (Multipart) message.getContent();
-                  for (int i = 0; i < multipart.getCount(); i++) {
-                    BodyPart part = multipart.getBodyPart(i);
-                    if (part.isMimeType("text/plain")) {
-                      msg.preview = part.getContent().toString();
-                    }
-                  }
-                }
-                emails.add(msg);
-              } catch (Exception e) {
-                log.error("Error while reading mail", e);
-              }
-              log.info("Processed {}/{} mail", count.incrementAndGet(), messages.length);
-            });
-        }
+      int newMails = connectToMailServerAndHandle(store -> readFolder(store, folder));
+      setWidgetDataToUI(folder);
+      return newMails;
+    } catch (Exception ex) {
+      metrics.increment(MailMetrics.Counter.errors, 1);
+      log.error("[{}]: Error while reading mails from folder {}", entity.getEntityID(), folder, ex);
+      return 0;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * @return number of new mails. Mails loaded by first sync or after UIDVALIDITY reset are not new
+   */
+  private int readFolder(Store store, String folder) throws Exception {
+    long start = System.nanoTime();
+    try (Folder mailbox = store.getFolder(folder)) {
+      open(mailbox, Folder.READ_ONLY);
+      FolderSyncState prevState = folderSyncStates.get(folder);
+      MailFolderReader.Result result = folderReader.read(mailbox, folder);
+      List<MessageWrapper> newMessages = result.newMails();
+      if (fullTextIndex != null) {
+        fullTextIndex.add(result.indexDocs());
       }
-      lastCheckedTimestamp = System.currentTimeMillis();
-      setWidgetDataToUI();
-    } catch (Exception e) {
-      log.error("Error while reading mails", e);
-    }
-
-    for (ThrowingConsumer<Store, Exception> handler : registeredHandlers.values()) {
-      handler.accept(store);
-    }
-  }
-
-  private static void readMessageBody(Message message, MessageWrapper msg) throws Exception {
-    if (message.isMimeType("text/plain") || message.isMimeType("text/html")) {
-      msg.setBody(message.getContent(), true);
-    } else if (message.isMimeType("multipart/*")) {
-      Multipart multipart = (Multipart) message.getContent();
-      for (int i = 0; i < multipart.getCount(); i++) {
-        BodyPart part = multipart.getBodyPart(i);
-        if (part.isMimeType("text/plain")) {
-          msg.setBody(part.getContent(), true);
-        } else if (part.isMimeType("text/html")) {
-          msg.setBody(part.getContent(), false);
-        } else if (part.getContentType().toLowerCase().contains("multipart/alternative")) {
-          Multipart innerMultipart = (Multipart) part.getContent();
-          for (int j = 0; j < innerMultipart.getCount(); j++) {
-            BodyPart innerPart = innerMultipart.getBodyPart(j);
-            String contentType = innerPart.getContentType().toLowerCase();
-
-            if (contentType.contains("text/plain")) {
-              msg.setBody(innerPart.getContent(), true);
-            } else if (contentType.contains("text/html")) {
-              msg.setBody(innerPart.getContent(), false);
-              saveInlineImages(innerPart, msg);
-            }
-          }
-        } else if (part.isMimeType("image/*")) {
-          saveInlineImage(part, msg);
+      FolderSyncState state = folderSyncStates.get(folder);
+      if (state != null) {
+        diskCache.writeFolder(folder, state.toFolderState(), newMessages);
+        if (mailbox instanceof POP3Folder) {
+          pop3SeenSet.save();
+        }
+        if (prevState == state) {
+          reconcileFolder(mailbox, folder, state, result.fetched());
+        } else {
+          state.messageCount = mailbox.getMessageCount();
         }
       }
+      // first sync or UIDVALIDITY reset loads existed mails, they are not new
+      boolean existedState = prevState != null && prevState == state;
+      if (mailbox instanceof IMAPFolder) {
+        // mails loaded on first sync or UIDVALIDITY reset are already counted
+        int newUnread = existedState ? (int) newMessages.stream().filter(message -> !message.seen).count() : 0;
+        folderCounters.synced(folder, mailbox.getMessageCount(), mailbox.getNewMessageCount(), newUnread);
+      }
+      if (existedState && !newMessages.isEmpty()) {
+        List<MessageWrapper> oldestFirst = new ArrayList<>(newMessages);
+        Collections.reverse(oldestFirst);
+        mailEvents.publish(oldestFirst);
+      }
+      logSyncSummary(folder, result.fetched(), newMessages.size(), result.failed(), result.lastError(), start);
+      return existedState ? newMessages.size() : 0;
     }
-    if (msg.preview != null && msg.preview.length() > 256) {
-      msg.preview = msg.preview.substring(0, 256) + "...";
+  }
+
+  /**
+   * Single line per folder sync instead of line per mail
+   */
+  private void logSyncSummary(String folder, int fetched, int synced, int failed, @Nullable Exception lastError,
+                              long startNanos) {
+    long took = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+    if (failed > 0) {
+      log.warn("[{}]: Synced {}/{} mails from {} in {}ms. Unable to read {} mails: {}", entity.getEntityID(),
+        synced, fetched, folder, took, failed, lastError == null ? null : lastError.getMessage());
+    } else if (synced > 0) {
+      log.info("[{}]: Synced {} mails from {} in {}ms", entity.getEntityID(), synced, folder, took);
+    } else {
+      log.debug("[{}]: No new mails in {}. Took {}ms", entity.getEntityID(), folder, took);
     }
   }
 
-  private static void saveInlineImages(BodyPart part, MessageWrapper msg) throws Exception {
-    if (part.getContentType().toLowerCase().contains("image")) {
-      saveInlineImage(part, msg);
+  private void open(Folder folder, int mode) throws Exception {
+    metrics.run(MailMetrics.Op.open, () -> folder.open(mode));
+  }
+
+  /**
+   * Load envelope, flags and body structure of all messages with single FETCH instead of lazy per-message requests
+   */
+  static void prefetch(@NotNull Folder mailbox, @NotNull Message[] messages) throws MessagingException {
+    // POP3 loads headers by TOP per mail anyway, sync reads them together with preview
+    if (messages.length == 0 || mailbox instanceof POP3Folder) {
+      return;
+    }
+    FetchProfile profile = new FetchProfile();
+    profile.add(FetchProfile.Item.ENVELOPE);
+    profile.add(FetchProfile.Item.FLAGS);
+    profile.add(FetchProfile.Item.CONTENT_INFO);
+    if (mailbox instanceof UIDFolder) {
+      profile.add(UIDFolder.FetchProfileItem.UID);
     }
+    mailbox.fetch(messages, profile);
   }
 
-  private static void saveInlineImage(BodyPart part, MessageWrapper msg) throws MessagingException, IOException {
-    String contentId = part.getHeader("Content-ID")[0];
-    if (contentId != null) {
-      contentId = contentId.replaceAll("<", "").replaceAll(">", "");
-      try (BASE64DecoderStream base64Stream = (BASE64DecoderStream) part.getContent()) {
-        byte[] imageData = base64Stream.readAllBytes();
-        msg.images.put(contentId, Base64.getEncoder().encodeToString(imageData));
+  private Map<String, MailDiskCache.FolderState> getFolderStates() {
+    Map<String, MailDiskCache.FolderState> states = new HashMap<>();
+    folderSyncStates.forEach((folder, state) -> states.put(folder, state.toFolderState()));
+    return states;
+  }
+
+  private static @Nullable Message findMessage(Folder folder, MessageWrapper message) throws MessagingException {
+    if (folder instanceof POP3Folder pop3Folder) {
+      Message[] messages = findPop3Messages(pop3Folder, Set.of(message.id));
+      return messages.length == 0 ? null : messages[0];
+    }
+    if (message.uid > 0 && folder instanceof UIDFolder uidFolder) {
+      return uidFolder.getMessageByUID(message.uid);
+    }
+    return folder.getMessage(message.num);
+  }
+
+  /**
+   * Resolve all mails by single UID FETCH if possible. Mails that no longer exist on server are skipped
+   */
+  private static Message[] findMessages(Folder folder, List<MessageWrapper> messages) throws MessagingException {
+    if (folder instanceof POP3Folder pop3Folder) {
+      return findPop3Messages(pop3Folder, messages.stream().map(MessageWrapper::getId).collect(Collectors.toSet()));
+    }
+    if (folder instanceof UIDFolder uidFolder && messages.stream().allMatch(message -> message.uid > 0)) {
+      long[] uids = messages.stream().mapToLong(message -> message.uid).toArray();
+      return Arrays.stream(uidFolder.getMessagesByUID(uids)).filter(Objects::nonNull).toArray(Message[]::new);
+    }
+    List<Message> result = new ArrayList<>(messages.size());
+    for (MessageWrapper message : messages) {
+      if (message.num > 0 && message.num <= folder.getMessageCount()) {
+        result.add(folder.getMessage(message.num));
       }
     }
+    return result.toArray(new Message[0]);
   }
 
-  private static Set<String> getAttachments(Message message) throws Exception {
-    Set<String> attachedFiles = new HashSet<>();
-    if (message.isMimeType("multipart/*")) {
-      Multipart multipart = (Multipart) message.getContent();
-      for (int i = 0; i < multipart.getCount(); i++) {
-        BodyPart part = multipart.getBodyPart(i);
-        if (Part.ATTACHMENT.equalsIgnoreCase(part.getDisposition())) {
-          attachedFiles.add(part.getFileName());
-        }
+  /**
+   * POP3 mails are resolved by UIDL, which is their id, because message numbers shift when mails are deleted
+   */
+  private static Message[] findPop3Messages(POP3Folder folder, Set<String> ids) throws MessagingException {
+    Message[] messages = folder.getMessages();
+    FetchProfile profile = new FetchProfile();
+    profile.add(UIDFolder.FetchProfileItem.UID);
+    folder.fetch(messages, profile);
+    List<Message> result = new ArrayList<>(ids.size());
+    for (Message message : messages) {
+      if (ids.contains(folder.getUID(message))) {
+        result.add(message);
       }
     }
-    return attachedFiles;
+    return result.toArray(new Message[0]);
   }
 
-  public void setWidgetDataToUI() {
+  /**
+   * Read only html (or plain text if mail has no html) body part. Inline images are just remembered, browser
+   * loads them from attachment endpoint by links that getFullMailBody() puts in place of 'cid:' links
+   */
+  static void readMessageBody(@NotNull Message message, @NotNull MessageWrapper msg) throws Exception {
+    MailMimeTree mimeTree = msg.getMimeTree(message);
+    MailMimeTree.MimeNode bodyPart = getBodyPart(mimeTree);
+    Part part = bodyPart == null ? null : MailMimeTree.findPart(message, bodyPart.section());
+    if (part != null) {
+      msg.setBody(part.getContent(), bodyPart.kind() == MailMimeTree.Kind.text);
+    }
+    for (MailMimeTree.MimeNode image : mimeTree.getInlineImages()) {
+      msg.images.put(image.contentId(), new InlineImage(image.section(), image.contentType()));
+    }
+    msg.renderBody();
+    msg.preview = MailPreviewReader.truncate(msg.preview);
+  }
+
+  /**
+   * @return null for mails without text, i.e. attachment-only scans, image-only mails or calendar invites
+   */
+  private static @Nullable MailMimeTree.MimeNode getBodyPart(MailMimeTree mimeTree) {
+    return mimeTree.getHtml() != null ? mimeTree.getHtml() : mimeTree.getText();
+  }
+
+  static @Nullable String getRecipients(Message message) throws MessagingException {
+    Address[] recipients = message.getRecipients(Message.RecipientType.TO);
+    return recipients == null ? null : Arrays.stream(recipients).map(Address::toString).collect(Collectors.joining(" "));
+  }
+
+  /**
+   * Push folder changes since version that each widget already has. Nothing is sent if folder version didn't move.
+   * Widgets that are too far behind get 'reset' and reload visible page with queryMails
+   */
+  private void setWidgetDataToUI(String folder) {
+    MailChangeFeed changeFeed = messageStore.getChangeFeed();
+    long version = changeFeed.getVersion(folder);
+    ObjectNode summary = null;
+    // widgets on same version share serialized diff
+    Map<Long, ObjectNode> updates = new HashMap<>();
     for (WidgetInfo info : widgetListeners.values()) {
-      String folder = info.widgetData.optString("folder", entity.getDefFolder());
-      info.store.update(folderMessages.getOrDefault(folder, Set.of()));
+      long widgetVersion = info.version.get();
+      if (widgetVersion == version || !folder.equals(getWidgetFolder(info))) {
+        continue;
+      }
+      if (summary == null) {
+        summary = getFolderSummary(folder);
+      }
+      ObjectNode base = summary;
+      ObjectNode update = updates.computeIfAbsent(widgetVersion, v -> createWidgetUpdate(base, folder, v, version));
+      info.version.set(update.get("version").asLong());
+      info.store.update(update);
+    }
+  }
+
+  private ObjectNode createWidgetUpdate(ObjectNode summary, String folder, long widgetVersion, long version) {
+    ObjectNode update = summary.deepCopy();
+    MailChangeFeed.Diff diff = widgetVersion < 0 ? null : messageStore.getChangeFeed().changesSince(folder, widgetVersion);
+    if (diff == null) {
+      return update.put("version", version).put("reset", true);
+    }
+    update.put("version", diff.version());
+    update.set("added", OBJECT_MAPPER.valueToTree(diff.added()));
+    update.set("removed", OBJECT_MAPPER.valueToTree(diff.removed()));
+    update.set("changed", OBJECT_MAPPER.valueToTree(diff.changed().stream()
+      .map(messageStore::get).filter(Objects::nonNull).toList()));
+    return update;
+  }
+
+  public void setWidgetDataToUI() {
+    widgetListeners.values().stream().map(this::getWidgetFolder).distinct().forEach(this::setWidgetDataToUI);
+  }
+
+  /**
+   * Detect mails deleted or read by other clients. Full UID/FLAGS fetch runs only if folder EXISTS count doesn't
+   * match local expectation or periodically, so quiet folder still costs single SELECT
+   */
+  private void reconcileFolder(Folder mailbox, String folder, FolderSyncState state, int newMessages)
+    throws Exception {
+    if (!(mailbox instanceof UIDFolder uidFolder)) {
+      return;
+    }
+    int messageCount = mailbox.getMessageCount();
+    boolean countChanged = state.messageCount >= 0 && messageCount != state.messageCount + newMessages;
+    state.messageCount = messageCount;
+    long now = System.currentTimeMillis();
+    if (!countChanged && now - state.lastReconcile < RECONCILE_FLAGS_INTERVAL.toMillis()) {
+      return;
+    }
+    state.lastReconcile = now;
+    long minUID = messageStore.getFolderMessages(folder).stream()
+      .mapToLong(MessageWrapper::getUid).filter(uid -> uid > 0).min().orElse(0);
+    if (minUID == 0) {
+      return;
+    }
+    Message[] serverMessages = Arrays.stream(uidFolder.getMessagesByUID(minUID, state.lastUID))
+      .filter(Objects::nonNull).toArray(Message[]::new);
+    FetchProfile profile = new FetchProfile();
+    profile.add(FetchProfile.Item.FLAGS);
+    profile.add(UIDFolder.FetchProfileItem.UID);
+    metrics.run(MailMetrics.Op.flags, () -> mailbox.fetch(serverMessages, profile));
+    Map<Long, Boolean> seenByUID = new HashMap<>();
+    for (Message message : serverMessages) {
+      seenByUID.put(uidFolder.getUID(message), message.isSet(Flags.Flag.SEEN));
+    }
+    List<String> removed = new ArrayList<>();
+    List<MessageWrapper> read = new ArrayList<>();
+    List<MessageWrapper> unread = new ArrayList<>();
+    for (MessageWrapper message : messageStore.getFolderMessages(folder)) {
+      if (message.uid <= 0 || message.uid > state.lastUID) {
+        continue;
+      }
+      Boolean seen = seenByUID.get(message.uid);
+      if (seen == null) {
+        removed.add(message.id);
+      } else if (seen != message.seen) {
+        (seen ? read : unread).add(message);
+      }
+    }
+    if (!removed.isEmpty()) {
+      log.info("[{}]: {} mails were removed from {} by other client", entity.getEntityID(), removed.size(), folder);
+      removeLocally(removed);
+    }
+    updateSeenLocally(read, true);
+    updateSeenLocally(unread, false);
+  }
+
+  private String getWidgetFolder(WidgetInfo info) {
+    return info.widgetData.optString("folder", entity.getDefFolder());
+  }
+
+  /**
+   * Filter, sort and page folder mails on server, so widget never receives whole folder
+   */
+  public @NotNull JsonNode queryMails(@NotNull MailQuery query) {
+    MailQuery.Page page = messageStore.query(query);
+    ObjectNode result = getFolderSummary(query.folder());
+    result.set("items", OBJECT_MAPPER.valueToTree(page.items()));
+    result.put("total", page.total());
+    result.put("nextCursor", page.nextCursor());
+    return result;
+  }
+
+  private ObjectNode getFolderSummary(String folder) {
+    int all = 0;
+    int unread = 0;
+    int attachments = 0;
+    for (MessageWrapper message : messageStore.getFolderMessages(folder)) {
+      all++;
+      if (MailQuery.Filter.unread.predicate.test(message)) {
+        unread++;
+      }
+      if (MailQuery.Filter.attachments.predicate.test(message)) {
+        attachments++;
+      }
+    }
+    ObjectNode summary = OBJECT_MAPPER.createObjectNode().put("folder", folder);
+    summary.putObject("counts").put("all", all).put("unread", unread).put("attachments", attachments);
+    return summary;
+  }
+
+  /**
+   * Search mails in full-text index, including mails that are no longer cached in memory. Mails of folders that
+   * aren't synced are found once background backfill has reached them
+   */
+  public @NotNull JsonNode searchMails(@Nullable String query, int limit) {
+    if (fullTextIndex == null) {
+      throw new IllegalStateException("Full-text index is disabled for " + entity.getEntityID());
     }
+    ArrayNode items = OBJECT_MAPPER.createArrayNode();
+    for (MailFullTextIndex.Doc doc : fullTextIndex.search(query, Math.max(1, Math.min(1000, limit)))) {
+      items.addObject()
+        .put("id", doc.id())
+        .put("folder", doc.folder())
+        .put("subject", doc.subject())
+        .put("sender", doc.sender())
+        .put("receivedDate", doc.date())
+        .put("cached", messageStore.get(doc.id()) != null);
+    }
+    ObjectNode result = OBJECT_MAPPER.createObjectNode();
+    result.set("items", items);
+    return result;
   }
 
+  /**
+   * Counters are served from memory while they are younger than 'mail count max age'. Otherwise IMAP folder
+   * counters are re-read with single STATUS command without selecting folder
+   */
   public int getMailCount(MailCountFilter mailCountFilter, String folder) {
+    String name = Objects.toString(folder, entity.getDefFolder());
+    Integer count = folderCounters.get(name, mailCountFilter, Duration.ofSeconds(entity.getMailCountMaxAge()));
+    if (count != null) {
+      return count;
+    }
     return connectToMailServerAndHandle(store -> {
-      try (Folder mailbox = store.getFolder(Objects.toString(folder, store.getDefaultFolder().getName()))) {
-        mailbox.open(Folder.READ_ONLY);
-        return mailCountFilter.countFn.apply(mailbox);
+      Folder mailbox = store.getFolder(name);
+      if (mailCountFilter != MailCountFilter.deleted && mailbox instanceof IMAPFolder imapFolder) {
+        Status status = metrics.time(MailMetrics.Op.search, () -> (Status) imapFolder.doCommand(protocol ->
+          protocol.status(imapFolder.getFullName(), new String[]{"MESSAGES", "UNSEEN", "RECENT"})));
+        folderCounters.update(name, status.total, status.unseen, status.recent);
+        return switch (mailCountFilter) {
+          case total -> status.total;
+          case unread -> status.unseen;
+          default -> status.recent;
+        };
+      }
+      try (mailbox) {
+        open(mailbox, Folder.READ_ONLY);
+        return metrics.time(MailMetrics.Op.search, () -> mailCountFilter.countFn.apply(mailbox));
       }
     });
   }
 
-  public void registerHandler(String key, ThrowingConsumer<Store, Exception> handler) {
-    registeredHandlers.put(key, handler);
+  public void subscribeNewMails(@NotNull String key, @NotNull Predicate<MessageWrapper> filter,
+                                @NotNull ThrowingConsumer<MessageWrapper, Exception> handler) {
+    mailEvents.subscribe(key, filter, handler);
     createMailListenerIfRequire();
   }
 
-  public void releaseHandler(String key) {
-    registeredHandlers.remove(key);
+  public void releaseNewMailsSubscription(@NotNull String key) {
+    mailEvents.unsubscribe(key);
     createMailListenerIfRequire();
   }
 
   public @Nullable JsonNode getFullMailBody(String id) {
-    for (Set<MessageWrapper> messages : folderMessages.values()) {
-      for (MessageWrapper message : messages) {
-        if (message.id.equals(id)) {
-          if (message.fullBody == null) {
-            connectToMailServerAndHandle(store -> {
-              var folder = store.getFolder(message.folder);
-              folder.open(message.seen ? Folder.READ_ONLY : Folder.READ_WRITE);
-              try {
-                Message msg = folder.getMessage(message.num);
-                if (msg != null) {
-                  readMessageBody(msg, message);
-                  if (!message.seen) {
-                    msg.setFlag(Flags.Flag.SEEN, true);
-                    folder.close(true);
-                  }
-                }
-                return null;
-              } catch (IndexOutOfBoundsException e) {
-                // some messages were deleted. fire re-read all messages
-                lastCheckedTimestamp = null;
-              }
-              return null;
-            });
+    MessageWrapper message = messageStore.get(id);
+    if (message == null) {
+      return null;
+    }
+    loadMessageBody(message, true, true);
+    var mail = OBJECT_MAPPER.createObjectNode();
+    String text = message.fullBody;
+    mail.put("plainText", message.asPlainText);
+    mail.put("body", text == null ? message.preview : resolveCidLinks(message, text));
+    ArrayNode attachments = mail.putArray("attachments");
+    if (message.mimeTree != null) {
+      for (MailMimeTree.MimeNode part : message.mimeTree.getAttachments()) {
+        attachments.addObject()
+          .put("section", part.section())
+          .put("name", part.fileName())
+          .put("contentType", part.contentType())
+          .put("size", part.size())
+          .put("url", MailDownloadLinks.create(entity.getEntityID(), id, part.section()));
+      }
+    }
+    return mail;
+  }
+
+  private String resolveCidLinks(MessageWrapper message, String body) {
+    if (message.asPlainText || message.images.isEmpty()) {
+      return body;
+    }
+    return MailHtmlRenderer.resolveCidLinks(body, cid -> {
+      InlineImage image = message.images.get(cid);
+      return image == null ? null : MailDownloadLinks.create(entity.getEntityID(), message.id, image.section());
+    });
+  }
+
+  /**
+   * @return mail body as plain text with line breaks. Body is fetched from server only once and reused by all callers
+   */
+  public @Nullable String getMailText(@NotNull MessageWrapper message) {
+    loadMessageBody(message, false, false);
+    return message.fullBody == null ? message.preview : MailHtmlRenderer.toText(message.fullBody);
+  }
+
+  /**
+   * @param withMimeTree also load part tree if mail was restored from disk cache with body
+   */
+  private void loadMessageBody(MessageWrapper message, boolean markSeen, boolean withMimeTree) {
+    boolean setSeen = markSeen && !message.seen;
+    boolean loadTree = withMimeTree && message.mimeTree == null;
+    if (message.fullBody != null && !setSeen && !loadTree) {
+      return;
+    }
+    connectToMailServerAndHandle(store -> {
+      try (Folder folder = store.getFolder(message.folder)) {
+        open(folder, setSeen ? Folder.READ_WRITE : Folder.READ_ONLY);
+        Message msg = findMessage(folder, message);
+        if (msg != null) {
+          if (loadTree) {
+            message.getMimeTree(msg);
           }
-          var mail = OBJECT_MAPPER.createObjectNode();
-          String text = message.fullBody;
-          if (text != null && !message.asPlainText) {
-            for (Map.Entry<String, String> entry : message.images.entrySet()) {
-              text = text.replaceAll(
-                "cid:" + entry.getKey(),
-                "data:image/jpeg;base64," + entry.getValue());
+          if (message.fullBody == null) {
+            metrics.run(MailMetrics.Op.body, () -> readMessageBody(msg, message));
+            MailMimeTree.MimeNode bodyPart = getBodyPart(message.getMimeTree(msg));
+            metrics.increment(MailMetrics.Counter.bytesFetched, bodyPart == null ? 0 : Math.max(0, bodyPart.size()));
+            FolderSyncState state = folderSyncStates.get(message.folder);
+            if (state != null) {
+              diskCache.writeMail(message, state.uidValidity);
+            }
+            if (fullTextIndex != null && message.fullBody != null) {
+              fullTextIndex.add(List.of(MailFullTextIndex.Doc.of(message,
+                Arrays.asList(getRecipients(msg), Jsoup.parse(message.fullBody).text()))));
             }
           }
-          mail.put("plainText", message.asPlainText);
-          mail.put("body", text == null ? message.preview : text);
-          return mail;
+          if (setSeen) {
+            msg.setFlag(Flags.Flag.SEEN, true);
+            message.setSeen(true);
+            messageStore.markChanged(message);
+            folderCounters.adjust(message.folder, 0, -1);
+            diskCache.writeSeen(message.folder, List.of(message.id), true);
+          }
         }
+      } catch (IndexOutOfBoundsException e) {
+        // some messages were deleted. fire re-read all messages
+        folderSyncStates.remove(message.folder);
       }
+      return null;
+    });
+  }
+
+  /**
+   * @return attachment or inline part of mail, or null if mail isn't cached or has no such part
+   */
+  public @Nullable MailMimeTree.MimeNode getAttachmentPart(@NotNull String id, @NotNull String section) {
+    MessageWrapper message = messageStore.get(id);
+    if (message == null) {
+      return null;
     }
-    return null;
+    MailMimeTree mimeTree = message.mimeTree != null ? message.mimeTree : withServerMessage(message, message::getMimeTree);
+    MailMimeTree.MimeNode part = mimeTree == null ? null : mimeTree.getPart(section);
+    if (part == null || (part.kind() != MailMimeTree.Kind.attachment && part.kind() != MailMimeTree.Kind.inline)) {
+      return null;
+    }
+    return part;
+  }
+
+  /**
+   * Stream attachment straight from server to output. IMAP part is fetched and decoded block by block, so
+   * attachment never sits fully in heap. Pooled connection is held until whole part is written. Lost connection
+   * is retried only until first byte is written, otherwise client would receive part twice
+   */
+  public void writeAttachment(@NotNull String id, @NotNull String section, @NotNull OutputStream outputStream) {
+    MessageWrapper message = messageStore.get(id);
+    if (message == null) {
+      throw new IllegalArgumentException("Mail not found: " + id);
+    }
+    AtomicBoolean written = new AtomicBoolean();
+    OutputStream trackingStream = new FilterOutputStream(outputStream) {
+      @Override
+      public void write(byte @NotNull [] buffer, int offset, int length) throws IOException {
+        written.set(true);
+        out.write(buffer, offset, length);
+      }
+
+      @Override
+      public void write(int value) throws IOException {
+        written.set(true);
+        out.write(value);
+      }
+    };
+    withServerMessage(message, () -> !written.get(), msg -> {
+      Part part = MailMimeTree.findPart(msg, section);
+      if (part == null) {
+        throw new IllegalArgumentException("Mail part %s not found".formatted(section));
+      }
+      try (InputStream stream = part.getInputStream()) {
+        long start = System.nanoTime();
+        metrics.increment(MailMetrics.Counter.bytesFetched, stream.transferTo(trackingStream));
+        metrics.record(MailMetrics.Op.attachment, start);
+      }
+      return null;
+    });
   }
 
+  /**
+   * @return local copy of attachment, downloaded on first request, or null if attachment cache is disabled
+   */
   @SneakyThrows
+  public @Nullable Path getCachedAttachment(@NotNull String id, @NotNull String section) {
+    if (!attachmentCache.isEnabled()) {
+      return null;
+    }
+    return attachmentCache.get(id, section, outputStream -> writeAttachment(id, section, outputStream));
+  }
+
+  /**
+   * Open folder read-only, so fetching parts doesn't mark mail as seen
+   */
+  private <T> T withServerMessage(MessageWrapper message, ThrowingFunction<Message, T, Exception> handler) {
+    return withServerMessage(message, () -> true, handler);
+  }
+
+  /**
+   * @param canRetry whether handler may be repeated on fresh connection if current one was lost
+   */
+  @SneakyThrows
+  private <T> T withServerMessage(MessageWrapper message, BooleanSupplier canRetry,
+                                  ThrowingFunction<Message, T, Exception> handler) {
+    return storePool.execute(store -> {
+      try (Folder folder = store.getFolder(message.folder)) {
+        open(folder, Folder.READ_ONLY);
+        Message msg = findMessage(folder, message);
+        return msg == null ? null : handler.apply(msg);
+      }
+    }, canRetry);
+  }
+
   public @Nullable JsonNode deleteMail(String id) {
-    for (Set<MessageWrapper> messages : folderMessages.values()) {
-      MessageWrapper foundMessage = messages.stream().filter(m -> m.id.equals(id)).findFirst()
-        .orElseThrow((Supplier<Throwable>) () -> new IllegalArgumentException("Mail not found: " + id));
-      connectToMailServerAndHandle(store -> {
-        Folder folder = store.getFolder(foundMessage.folder);
-        folder.open(Folder.READ_WRITE);
-        Message msg = folder.getMessage(foundMessage.num);
-        if (msg != null) {
-          msg.setFlag(Flags.Flag.DELETED, true);
-          folder.close(true);
+    if (messageStore.get(id) == null) {
+      throw new IllegalArgumentException("Mail not found: " + id);
+    }
+    deleteMails(List.of(id));
+    return null;
+  }
+
+  public @NotNull JsonNode deleteMails(@NotNull Collection<String> ids) {
+    int affected = applyToMails(ids, (folder, messages) ->
+      // closing folder expunges all deleted messages at once
+      folder.setFlags(messages, new Flags(Flags.Flag.DELETED), true));
+    removeLocally(ids);
+    return OBJECT_MAPPER.createObjectNode().put("affected", affected);
+  }
+
+  /**
+   * Move mails to target folder. Uses IMAP MOVE if supported, otherwise copies and deletes originals
+   */
+  public @NotNull JsonNode moveMails(@NotNull Collection<String> ids, @NotNull String target) {
+    int affected = applyToMails(ids, (folder, messages) -> {
+      Folder targetFolder = folder.getStore().getFolder(target);
+      if (!targetFolder.exists()) {
+        throw new IllegalArgumentException("Folder not found: " + target);
+      }
+      if (folder instanceof IMAPFolder imapFolder && ((IMAPStore) folder.getStore()).hasCapability("MOVE")) {
+        imapFolder.moveMessages(messages, targetFolder);
+      } else {
+        folder.copyMessages(messages, targetFolder);
+        folder.setFlags(messages, new Flags(Flags.Flag.DELETED), true);
+      }
+    });
+    removeLocally(ids);
+    folderCounters.invalidate(target);
+    if (getWatchedFolders().contains(target)) {
+      MailSyncExecutor.submit(() -> syncFolder(target));
+    }
+    return OBJECT_MAPPER.createObjectNode().put("affected", affected);
+  }
+
+  public @NotNull JsonNode setMailsFlag(@NotNull Collection<String> ids, @NotNull MailFlag flag, boolean value) {
+    int affected = applyToMails(ids, (folder, messages) -> folder.setFlags(messages, new Flags(flag.flag), value));
+    if (flag == MailFlag.seen) {
+      updateSeenLocally(ids.stream().map(messageStore::get).filter(Objects::nonNull).toList(), value);
+    }
+    return OBJECT_MAPPER.createObjectNode().put("affected", affected);
+  }
+
+  /**
+   * Mark every unread mail of folder as read, including mails that are not loaded locally
+   */
+  public @NotNull JsonNode markAllRead(@Nullable String folderName) {
+    String name = Objects.toString(folderName, entity.getDefFolder());
+    int affected = connectToMailServerAndHandle(store -> {
+      try (Folder folder = store.getFolder(name)) {
+        open(folder, Folder.READ_WRITE);
+        Message[] unread = metrics.time(MailMetrics.Op.search, () ->
+          folder.search(new FlagTerm(new Flags(Flags.Flag.SEEN), false)));
+        if (unread.length > 0) {
+          folder.setFlags(unread, new Flags(Flags.Flag.SEEN), true);
+        }
+        return unread.length;
+      }
+    });
+    updateSeenLocally(messageStore.getFolderMessages(name), true);
+    folderCounters.setUnread(name, 0);
+    return OBJECT_MAPPER.createObjectNode().put("affected", affected);
+  }
+
+  /**
+   * Group mails by folder and apply action once per folder, so each folder is opened once per batch
+   *
+   * @return number of mails found on server
+   */
+  private int applyToMails(Collection<String> ids, ThrowingBiConsumer<Folder, Message[], Exception> action) {
+    Map<String, List<MessageWrapper>> byFolder = new HashMap<>();
+    for (String id : ids) {
+      MessageWrapper message = messageStore.get(id);
+      if (message != null) {
+        byFolder.computeIfAbsent(message.folder, f -> new ArrayList<>()).add(message);
+      }
+    }
+    int affected = 0;
+    for (Map.Entry<String, List<MessageWrapper>> entry : byFolder.entrySet()) {
+      affected += connectToMailServerAndHandle(store -> {
+        try (Folder folder = store.getFolder(entry.getKey())) {
+          open(folder, Folder.READ_WRITE);
+          Message[] messages = findMessages(folder, entry.getValue());
+          if (messages.length > 0) {
+            action.accept(folder, messages);
+          }
+          return messages.length;
         }
-        return null;
       });
-      messages.remove(foundMessage);
-      setWidgetDataToUI();
     }
-    return null;
+    return affected;
+  }
+
+  private void removeLocally(Collection<String> ids) {
+    Set<String> folders = new HashSet<>();
+    for (String id : ids) {
+      MessageWrapper message = messageStore.remove(id);
+      if (message != null) {
+        folders.add(message.folder);
+        folderCounters.adjust(message.folder, -1, message.seen ? 0 : -1);
+        diskCache.writeDelete(message.folder, id);
+      }
+    }
+    if (fullTextIndex != null) {
+      fullTextIndex.remove(ids);
+    }
+    folders.forEach(this::setWidgetDataToUI);
+  }
+
+  private void updateSeenLocally(Collection<MessageWrapper> messages, boolean seen) {
+    Map<String, List<String>> changed = new HashMap<>();
+    for (MessageWrapper message : messages) {
+      if (message.seen != seen) {
+        message.setSeen(seen);
+        messageStore.markChanged(message);
+        changed.computeIfAbsent(message.folder, f -> new ArrayList<>()).add(message.id);
+      }
+    }
+    changed.forEach((folder, ids) -> {
+      folderCounters.adjust(folder, 0, seen ? -ids.size() : ids.size());
+      diskCache.writeSeen(folder, ids, seen);
+      setWidgetDataToUI(folder);
+    });
+  }
+
+  /**
+   * Append base64 chunk of attachment uploaded from widget
+   */
+  @SneakyThrows
+  public @NotNull JsonNode uploadAttachment(@Nullable String uploadId, @NotNull String name, @NotNull String data) {
+    return OBJECT_MAPPER.createObjectNode().put("uploadId", uploads.append(uploadId, name, data));
   }
 
   @SneakyThrows
@@ -358,28 +1026,58 @@ public class MailService extends EntityService.ServiceInstance<MailEntity> {
     MailBuilder builder = new MailBuilder(entity, subject, body, to);
     if (files != null) {
       for (JsonNode file : files) {
-        builder.withFileAttachment(file.get("name").asText(), file.get("content").binaryValue());
+        String name = file.get("name").asText();
+        if (file.hasNonNull("uploadId")) {
+          builder.withTempFileAttachment(name, uploads.take(file.get("uploadId").asText()));
+        } else {
+          String content = file.get("content").asText();
+          // decode base64 directly to temp file instead of materialize decoded array
+          builder.withFileAttachment(name, Base64.getMimeDecoder().wrap(
+            new ByteArrayInputStream(content.getBytes(StandardCharsets.US_ASCII))));
+        }
       }
     }
-    builder.sendMail();
-    context.ui().toastr().success("Mail sent to: " + to);
-    return null;
+    builder.sendMail().whenComplete((id, ex) -> {
+      if (ex == null) {
+        context.ui().toastr().success("Mail sent to: " + to);
+      } else {
+        context.ui().toastr().error("Unable to send mail to %s: %s".formatted(to, ex.getMessage()));
+      }
+    });
+    return OBJECT_MAPPER.createObjectNode().put("queued", outbox.size());
   }
 
   @RequiredArgsConstructor
   public enum MailCountFilter {
     total(Folder::getMessageCount),
-    recent(folder -> folder.search(new FlagTerm(new Flags(Flags.Flag.RECENT), true)).length),
-    deleted(folder -> folder.search(new FlagTerm(new Flags(Flags.Flag.DELETED), true)).length),
-    unread(folder -> folder.search(new FlagTerm(new Flags(Flags.Flag.SEEN), false)).length);
+    recent(Folder::getNewMessageCount),
+    deleted(Folder::getDeletedMessageCount),
+    unread(Folder::getUnreadMessageCount);
     private final ThrowingFunction<Folder, Integer, Exception> countFn;
   }
 
-  private record WidgetInfo(CustomWidgetDataStore store, JSON widgetData) {
+  @RequiredArgsConstructor
+  public enum MailFlag {
+    seen(Flags.Flag.SEEN),
+    flagged(Flags.Flag.FLAGGED),
+    answered(Flags.Flag.ANSWERED);
+    private final Flags.Flag flag;
+  }
+
+  /**
+   * @param section     IMAP section number of image part
+   * @param contentType image mime type
+   */
+  public record InlineImage(String section, String contentType) {
+  }
+
+  /**
+   * @param version folder version that widget already received
+   */
+  private record WidgetInfo(CustomWidgetDataStore store, JSON widgetData, AtomicLong version) {
   }
 
   @Getter
-  @RequiredArgsConstructor
   public static final class MessageWrapper {
     private final String id;
     private final String subject;
@@ -387,17 +1085,42 @@ public class MailService extends EntityService.ServiceInstance<MailEntity> {
     private final String sender;
     private final String description;
     private final int num;
+    private final long uid;
     private final Date receivedDate;
     private final int size;
-    private final boolean seen;
+    @Setter(AccessLevel.PACKAGE)
+    private volatile boolean seen;
     private final Set<String> attachments;
+    @Setter
     private String preview;
     @JsonIgnore
     private String fullBody;
     @JsonIgnore
-    private final Map<String, String> images = new HashMap<>();
+    private String rawBody;
+    @JsonIgnore
+    private final Map<String, InlineImage> images = new HashMap<>();
     @JsonIgnore
     public boolean asPlainText;
+    // structure of mail parts, parsed once per mail
+    @JsonIgnore
+    @Getter(AccessLevel.NONE)
+    @Setter(AccessLevel.PACKAGE)
+    private volatile MailMimeTree mimeTree;
+
+    public MessageWrapper(String id, String subject, String folder, String sender, String description, int num, long uid,
+                          Date receivedDate, int size, boolean seen, Set<String> attachments) {
+      this.id = Objects.requireNonNull(id, "Mail id is required");
+      this.subject = subject;
+      this.folder = folder;
+      this.sender = sender;
+      this.description = description;
+      this.num = num;
+      this.uid = uid;
+      this.receivedDate = receivedDate;
+      this.size = size;
+      this.seen = seen;
+      this.attachments = attachments;
+    }
 
     @Override
     public boolean equals(Object o) {
@@ -411,27 +1134,34 @@ public class MailService extends EntityService.ServiceInstance<MailEntity> {
       return Objects.hashCode(id);
     }
 
-    @SneakyThrows
-    public void setBody(Object html, boolean plainText) {
-      String body = html.toString();
-      if (plainText) {
-        if(!body.startsWith("<html")) {
-          this.fullBody = "<html><body>" + body.replace("\r\n", "<br>").replace("\n", "<br>") + "</body></html>";
-        } else {
-          this.fullBody = body.replace("\r\n", "").replace("\n", "");
-        }
-      } else {
-        this.fullBody = body.replaceAll("(?i)<br\\s*/?>", "");
+    /**
+     * @param message same mail loaded from server, parsed only if tree isn't known yet, i.e. mail restored from disk
+     */
+    MailMimeTree getMimeTree(Part message) throws Exception {
+      if (mimeTree == null) {
+        mimeTree = MailMimeTree.parse(message);
       }
+      return mimeTree;
+    }
+
+    void restoreBody(String fullBody, boolean plainText) {
+      this.fullBody = fullBody;
       this.asPlainText = plainText;
     }
-  }
 
-  @SneakyThrows
-  private static String getMessageUID(Message message) {
-    if (message instanceof MimeMessage mimeMessage) {
-      return mimeMessage.getMessageID();
+    public void setBody(Object html, boolean plainText) {
+      this.rawBody = html.toString();
+      this.asPlainText = plainText;
+    }
+
+    /**
+     * Render body once all parts and inline images are read. Result is kept as fullBody
+     */
+    void renderBody() {
+      if (rawBody != null) {
+        this.fullBody = MailHtmlRenderer.render(rawBody, asPlainText);
+        this.rawBody = null;
+      }
     }
-    return message.getFrom()[0].toString() + message.getMessageNumber();
   }
 }
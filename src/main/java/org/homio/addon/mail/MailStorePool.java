@@ -0,0 +1,379 @@
+package org.homio.addon.mail;
+
+import com.pivovarit.function.ThrowingFunction;
+import jakarta.mail.FolderClosedException;
+import jakarta.mail.MessagingException;
+import jakarta.mail.Session;
+import jakarta.mail.Store;
+import jakarta.mail.StoreClosedException;
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.log4j.Log4j2;
+import org.eclipse.angus.mail.util.MailConnectException;
+import org.jetbrains.annotations.NotNull;
+
+import java.net.SocketException;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Keeps authenticated IMAP/POP3 stores of single MailEntity alive between calls, so polling, counters and
+ * body fetches don't pay TLS handshake and LOGIN on every request. Pooled and dedicated connections together
+ * never exceed 'max connections' of account: callers wait for free connection, and dedicated connection closes
+ * idle pooled one if limit is reached.
+ */
+@Log4j2
+@RequiredArgsConstructor
+public class MailStorePool {
+
+  private static final Duration VALIDATE_AFTER = Duration.ofSeconds(30);
+  private static final Duration MAX_IDLE_TIME = Duration.ofMinutes(5);
+  private static final int TIMEOUT_MS = 30000;
+  // long-living connections (i.e. IMAP IDLE) are silent for minutes, so read timeout must be longer than keep-alive
+  private static final int DEDICATED_TIMEOUT_MS = (int) Duration.ofMinutes(15).toMillis();
+
+  private final MailEntity entity;
+  private final MailMetrics metrics;
+  // guards openConnections too, waiters are notified when store is returned or connection closed
+  private final Deque<PooledStore> idleStores = new ArrayDeque<>();
+  // store used by execute() on current thread, nested calls reuse it instead of waiting for second connection
+  private final ThreadLocal<PooledStore> currentStore = new ThreadLocal<>();
+
+  @Getter
+  private final AtomicLong hits = new AtomicLong();
+  @Getter
+  private final AtomicLong creates = new AtomicLong();
+  @Getter
+  private final AtomicLong failures = new AtomicLong();
+
+  private Session session;
+  private Session dedicatedSession;
+  private boolean closed;
+  private int openConnections;
+
+  /**
+   * Borrow connected store, apply handler and return store back to pool. If connection was dropped by server
+   * during handler execution, store is discarded and handler executed once again on fresh connection.
+   */
+  public <T> T execute(@NotNull ThrowingFunction<Store, T, Exception> handler) throws Exception {
+    return execute(handler, () -> true);
+  }
+
+  /**
+   * Same as execute(handler), but handler is repeated only while canRetry returns true, i.e. handler that streams
+   * part to client may be repeated only until first byte is written
+   */
+  public <T> T execute(@NotNull ThrowingFunction<Store, T, Exception> handler, @NotNull BooleanSupplier canRetry)
+    throws Exception {
+    PooledStore current = currentStore.get();
+    if (current != null) {
+      // lost connection is retried by outer call
+      return handler.apply(current.store);
+    }
+    try {
+      return executeOnPooledStore(handler, canRetry);
+    } finally {
+      currentStore.remove();
+    }
+  }
+
+  private <T> T executeOnPooledStore(ThrowingFunction<Store, T, Exception> handler, BooleanSupplier canRetry)
+    throws Exception {
+    PooledStore pooled = borrow();
+    try {
+      T result = handler.apply(pooled.store);
+      release(pooled);
+      return result;
+    } catch (Exception ex) {
+      if (!isConnectionLost(ex, pooled.store)) {
+        release(pooled);
+        throw ex;
+      }
+      if (!canRetry.getAsBoolean()) {
+        failures.incrementAndGet();
+        discard(pooled);
+        throw ex;
+      }
+      failures.incrementAndGet();
+      discard(pooled);
+      log.warn("[{}]: Mail server connection lost. Reconnecting: {}", entity.getEntityID(), ex.getMessage());
+      PooledStore fresh = borrow();
+      try {
+        T result = handler.apply(fresh.store);
+        release(fresh);
+        return result;
+      } catch (Exception retryEx) {
+        if (isConnectionLost(retryEx, fresh.store)) {
+          failures.incrementAndGet();
+          discard(fresh);
+        } else {
+          release(fresh);
+        }
+        throw retryEx;
+      }
+    }
+  }
+
+  /**
+   * Ping idle connections to keep them alive and close ones that were not used for too long
+   */
+  public void keepAlive() {
+    List<PooledStore> toCheck = new ArrayList<>();
+    List<PooledStore> toClose = new ArrayList<>();
+    synchronized (idleStores) {
+      Iterator<PooledStore> iterator = idleStores.iterator();
+      while (iterator.hasNext()) {
+        PooledStore pooled = iterator.next();
+        iterator.remove();
+        if (pooled.idleTime() > MAX_IDLE_TIME.toMillis()) {
+          toClose.add(pooled);
+        } else {
+          toCheck.add(pooled);
+        }
+      }
+    }
+    toClose.forEach(this::discard);
+    for (PooledStore pooled : toCheck) {
+      // isConnected() sends NOOP to server for IMAP/POP3
+      if (pooled.store.isConnected()) {
+        pushIdle(pooled);
+      } else {
+        discard(pooled);
+      }
+    }
+    log.debug("[{}]: Mail store pool. idle: {}, hits: {}, creates: {}, failures: {}",
+      entity.getEntityID(), toCheck.size(), hits.get(), creates.get(), failures.get());
+  }
+
+  /**
+   * Open new connection that is not reused by pool, but counts against connection limit. Caller is responsible
+   * to close it.
+   */
+  public @NotNull DedicatedStore connectDedicated() throws MessagingException, InterruptedException {
+    reserveDedicated();
+    try {
+      Store store = getDedicatedSession().getStore();
+      connect(store);
+      return new DedicatedStore(store, this::connectionClosed);
+    } catch (MessagingException | RuntimeException ex) {
+      connectionClosed();
+      throw ex;
+    }
+  }
+
+  /**
+   * @return currently open pooled and dedicated connections
+   */
+  public int getOpenConnections() {
+    synchronized (idleStores) {
+      return openConnections;
+    }
+  }
+
+  public void close() {
+    List<PooledStore> stores;
+    synchronized (idleStores) {
+      closed = true;
+      stores = new ArrayList<>(idleStores);
+      idleStores.clear();
+    }
+    stores.forEach(this::discard);
+  }
+
+  private PooledStore borrow() throws MessagingException, InterruptedException {
+    while (true) {
+      PooledStore pooled;
+      synchronized (idleStores) {
+        while ((pooled = idleStores.pollFirst()) == null && !tryReserve()) {
+          idleStores.wait();
+        }
+      }
+      if (pooled == null) {
+        pooled = createStore();
+      } else if (pooled.idleTime() < VALIDATE_AFTER.toMillis() || pooled.store.isConnected()) {
+        hits.incrementAndGet();
+      } else {
+        discard(pooled);
+        continue;
+      }
+      currentStore.set(pooled);
+      return pooled;
+    }
+  }
+
+  /**
+   * Wait for free connection slot. If all slots are taken and some pooled connection is idle, it's closed
+   */
+  private void reserveDedicated() throws InterruptedException {
+    while (true) {
+      PooledStore idle;
+      synchronized (idleStores) {
+        if (tryReserve()) {
+          return;
+        }
+        idle = idleStores.pollLast();
+        if (idle == null) {
+          idleStores.wait();
+          continue;
+        }
+      }
+      discard(idle);
+    }
+  }
+
+  private boolean tryReserve() {
+    if (openConnections < entity.getMaxConnections()) {
+      openConnections++;
+      return true;
+    }
+    return false;
+  }
+
+  private void connectionClosed() {
+    synchronized (idleStores) {
+      openConnections--;
+      idleStores.notifyAll();
+    }
+  }
+
+  /**
+   * Connection slot must be reserved by caller
+   */
+  private PooledStore createStore() throws MessagingException {
+    try {
+      Store store = getSession().getStore();
+      connect(store);
+      return new PooledStore(store);
+    } catch (MessagingException | RuntimeException ex) {
+      connectionClosed();
+      throw ex;
+    }
+  }
+
+  private void connect(Store store) throws MessagingException {
+    long start = System.nanoTime();
+    try {
+      store.connect(entity.getPop3Hostname(), entity.getPop3Port(),
+        entity.getPop3User(), entity.getPop3Password().asString());
+    } catch (MessagingException ex) {
+      failures.incrementAndGet();
+      metrics.increment(MailMetrics.Counter.errors, 1);
+      throw ex;
+    } finally {
+      metrics.record(MailMetrics.Op.connect, start);
+    }
+    creates.incrementAndGet();
+  }
+
+  private void release(PooledStore pooled) {
+    if (pooled.store.isConnected() && pushIdle(pooled)) {
+      return;
+    }
+    discard(pooled);
+  }
+
+  private boolean pushIdle(PooledStore pooled) {
+    synchronized (idleStores) {
+      if (closed || idleStores.size() >= entity.getMaxConnections()) {
+        return false;
+      }
+      pooled.lastUsed = System.currentTimeMillis();
+      idleStores.addFirst(pooled);
+      idleStores.notifyAll();
+      return true;
+    }
+  }
+
+  private void discard(PooledStore pooled) {
+    try {
+      pooled.store.close();
+    } catch (Exception ex) {
+      log.debug("[{}]: Unable to close mail store: {}", entity.getEntityID(), ex.getMessage());
+    } finally {
+      connectionClosed();
+    }
+  }
+
+  private synchronized @NotNull Session getSession() {
+    if (session == null) {
+      session = createSession(TIMEOUT_MS);
+    }
+    return session;
+  }
+
+  private synchronized @NotNull Session getDedicatedSession() {
+    if (dedicatedSession == null) {
+      dedicatedSession = createSession(DEDICATED_TIMEOUT_MS);
+    }
+    return dedicatedSession;
+  }
+
+  private @NotNull Session createSession(int readTimeout) {
+    String baseProtocol = entity.getMailFetchProtocolType().name().toLowerCase();
+    String protocol = entity.getPop3Security() == MailEntity.Security.SSL ? baseProtocol.concat("s") : baseProtocol;
+
+    Properties props = new Properties();
+    props.setProperty("mail." + baseProtocol + ".starttls.enable", "true");
+    props.setProperty("mail.store.protocol", protocol);
+    props.setProperty("mail." + protocol + ".connectiontimeout", String.valueOf(TIMEOUT_MS));
+    props.setProperty("mail." + protocol + ".timeout", String.valueOf(readTimeout));
+    return Session.getInstance(props);
+  }
+
+  private static boolean isConnectionLost(Exception ex, Store store) {
+    if (ex instanceof StoreClosedException || ex instanceof FolderClosedException || ex instanceof MailConnectException) {
+      return true;
+    }
+    if (ex.getCause() instanceof SocketException) {
+      return true;
+    }
+    return !store.isConnected();
+  }
+
+  /**
+   * Connection that frees its slot in pool when closed
+   */
+  public static final class DedicatedStore implements AutoCloseable {
+    @Getter
+    private final @NotNull Store store;
+    private final Runnable closeHandler;
+    private final AtomicBoolean closed = new AtomicBoolean();
+
+    private DedicatedStore(@NotNull Store store, @NotNull Runnable closeHandler) {
+      this.store = store;
+      this.closeHandler = closeHandler;
+    }
+
+    @Override
+    public void close() throws MessagingException {
+      try {
+        store.close();
+      } finally {
+        if (closed.compareAndSet(false, true)) {
+          closeHandler.run();
+        }
+      }
+    }
+  }
+
+  private static final class PooledStore {
+    private final Store store;
+    private long lastUsed = System.currentTimeMillis();
+
+    private PooledStore(Store store) {
+      this.store = store;
+    }
+
+    private long idleTime() {
+      return System.currentTimeMillis() - lastUsed;
+    }
+  }
+}
@@ -0,0 +1,29 @@
+package org.homio.addon.mail;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Shared executor that syncs folders of all mail accounts concurrently. Number of simultaneous connections of
+ * each account is limited by its MailStorePool.
+ */
+public final class MailSyncExecutor {
+
+  private static final AtomicInteger THREAD_COUNTER = new AtomicInteger();
+  private static final ExecutorService EXECUTOR = Executors.newCachedThreadPool(runnable -> {
+    Thread thread = new Thread(runnable, "mail-sync-" + THREAD_COUNTER.incrementAndGet());
+    thread.setDaemon(true);
+    return thread;
+  });
+
+  private MailSyncExecutor() {
+  }
+
+  public static @NotNull CompletableFuture<Void> submit(@NotNull Runnable task) {
+    return CompletableFuture.runAsync(task, EXECUTOR);
+  }
+}
@@ -0,0 +1,218 @@
+package org.homio.addon.mail;
+
+import jakarta.mail.Authenticator;
+import jakarta.mail.MessagingException;
+import jakarta.mail.PasswordAuthentication;
+import jakarta.mail.Session;
+import jakarta.mail.Transport;
+import jakarta.mail.internet.MimeMessage;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.log4j.Log4j2;
+import org.eclipse.angus.mail.smtp.SMTPSendFailedException;
+import org.eclipse.angus.mail.util.MailConnectException;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.net.SocketException;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Objects;
+import java.util.Properties;
+
+/**
+ * Connected SMTP transports of single MailEntity. Burst of mails is sent over already authenticated connection,
+ * connection is checked with RSET before reuse and re-established if server closed it (i.e. 421 response).
+ */
+@Log4j2
+@RequiredArgsConstructor
+public class MailTransportPool {
+
+  private static final int MAX_IDLE_TRANSPORTS = 2;
+  private static final Duration MAX_IDLE_TIME = Duration.ofMinutes(1);
+  private static final int TIMEOUT_MS = 30000;
+  private static final int SERVICE_NOT_AVAILABLE = 421;
+
+  private final MailEntity entity;
+  private final MailMetrics metrics;
+  private final Deque<PooledTransport> idleTransports = new ArrayDeque<>();
+
+  private Session session;
+  private boolean closed;
+
+  /**
+   * Send messages one by one over single pooled connection
+   *
+   * @return send error of each message, null if message was accepted by server
+   */
+  public @NotNull List<MessagingException> send(@NotNull List<MimeMessage> messages) {
+    List<MessagingException> errors = new ArrayList<>(messages.size());
+    PooledTransport pooled = null;
+    for (MimeMessage message : messages) {
+      try {
+        if (pooled == null) {
+          pooled = borrow();
+        }
+        errors.add(sendMessage(pooled, message));
+      } catch (MessagingException ex) {
+        // unable to reconnect, no reason to try rest of batch now
+        pooled = null;
+        errors.add(ex);
+      }
+    }
+    if (pooled != null) {
+      release(pooled);
+    }
+    long failed = errors.stream().filter(Objects::nonNull).count();
+    metrics.increment(MailMetrics.Counter.mailsSent, errors.size() - failed);
+    metrics.increment(MailMetrics.Counter.errors, failed);
+    return errors;
+  }
+
+  public synchronized @NotNull Session getSession() {
+    if (session == null) {
+      Properties props = entity.getSmtpSecurity().prepareMail(entity);
+      props.put("mail.smtp.connectiontimeout", TIMEOUT_MS);
+      props.put("mail.smtp.timeout", TIMEOUT_MS);
+      props.put("mail.smtp.userset", "true");
+      session = Session.getInstance(props, new Authenticator() {
+        protected PasswordAuthentication getPasswordAuthentication() {
+          return new PasswordAuthentication(entity.getSmtpUser(), entity.getSmtpPassword().asString());
+        }
+      });
+    }
+    return session;
+  }
+
+  /**
+   * Close connections that were not used for a while
+   */
+  public void evictIdle() {
+    List<PooledTransport> toClose = new ArrayList<>();
+    synchronized (idleTransports) {
+      idleTransports.removeIf(pooled -> {
+        if (pooled.idleTime() > MAX_IDLE_TIME.toMillis()) {
+          toClose.add(pooled);
+          return true;
+        }
+        return false;
+      });
+    }
+    toClose.forEach(this::discard);
+  }
+
+  public void close() {
+    List<PooledTransport> transports;
+    synchronized (idleTransports) {
+      closed = true;
+      transports = new ArrayList<>(idleTransports);
+      idleTransports.clear();
+    }
+    transports.forEach(this::discard);
+  }
+
+  private PooledTransport borrow() throws MessagingException {
+    while (true) {
+      PooledTransport pooled;
+      synchronized (idleTransports) {
+        pooled = idleTransports.pollFirst();
+      }
+      if (pooled == null) {
+        return createTransport();
+      }
+      // SMTP isConnected() sends RSET (mail.smtp.userset) so previous transaction state is cleared as well
+      if (pooled.idleTime() < MAX_IDLE_TIME.toMillis() && pooled.transport.isConnected()) {
+        return pooled;
+      }
+      discard(pooled);
+    }
+  }
+
+  private PooledTransport createTransport() throws MessagingException {
+    Transport transport = getSession().getTransport("smtp");
+    long start = System.nanoTime();
+    try {
+      transport.connect();
+    } finally {
+      metrics.record(MailMetrics.Op.smtpConnect, start);
+    }
+    return new PooledTransport(transport);
+  }
+
+  private void release(PooledTransport pooled) {
+    synchronized (idleTransports) {
+      if (!closed && idleTransports.size() < MAX_IDLE_TRANSPORTS) {
+        pooled.lastUsed = System.currentTimeMillis();
+        idleTransports.addFirst(pooled);
+        return;
+      }
+    }
+    discard(pooled);
+  }
+
+  private void discard(PooledTransport pooled) {
+    try {
+      pooled.transport.close();
+    } catch (Exception ex) {
+      log.debug("[{}]: Unable to close SMTP transport: {}", entity.getEntityID(), ex.getMessage());
+    }
+  }
+
+  /**
+   * @return null if sent, or non-connection error. Connection is replaced by fresh one if server dropped it
+   */
+  private @Nullable MessagingException sendMessage(PooledTransport pooled, MimeMessage message) throws MessagingException {
+    long start = System.nanoTime();
+    try {
+      return sendMessageOrReconnect(pooled, message);
+    } finally {
+      metrics.record(MailMetrics.Op.send, start);
+    }
+  }
+
+  private @Nullable MessagingException sendMessageOrReconnect(PooledTransport pooled, MimeMessage message)
+    throws MessagingException {
+    try {
+      pooled.transport.sendMessage(message, message.getAllRecipients());
+      return null;
+    } catch (MessagingException ex) {
+      if (!isConnectionLost(ex, pooled.transport)) {
+        return ex;
+      }
+      log.warn("[{}]: SMTP connection lost. Reconnecting: {}", entity.getEntityID(), ex.getMessage());
+      discard(pooled);
+      pooled.transport = createTransport().transport;
+      try {
+        pooled.transport.sendMessage(message, message.getAllRecipients());
+        return null;
+      } catch (MessagingException retryEx) {
+        return retryEx;
+      }
+    }
+  }
+
+  private static boolean isConnectionLost(MessagingException ex, Transport transport) {
+    if (ex instanceof SMTPSendFailedException sendFailed && sendFailed.getReturnCode() == SERVICE_NOT_AVAILABLE) {
+      return true;
+    }
+    if (ex instanceof MailConnectException || ex.getCause() instanceof SocketException) {
+      return true;
+    }
+    return !transport.isConnected();
+  }
+
+  private static final class PooledTransport {
+    private Transport transport;
+    private long lastUsed = System.currentTimeMillis();
+
+    private PooledTransport(Transport transport) {
+      this.transport = transport;
+    }
+
+    private long idleTime() {
+      return System.currentTimeMillis() - lastUsed;
+    }
+  }
+}
@@ -0,0 +1,116 @@
+package org.homio.addon.mail;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.Base64;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Attachments uploaded from widget chunk by chunk. Each upload is appended to temp file, which is handed over
+ * to MailBuilder when mail is sent, so widget never posts whole file within single request.
+ */
+public class MailUploads {
+
+  private static final Duration UPLOAD_TTL = Duration.ofHours(1);
+  // each upload may take MAX_ATTACHMENT_SIZE of disk
+  private static final int MAX_UPLOADS = 10;
+
+  private final Map<String, Upload> uploads = new ConcurrentHashMap<>();
+
+  /**
+   * @param uploadId null for first chunk
+   * @return upload id to pass with next chunks
+   * @throws IllegalStateException if too many uploads are in progress
+   */
+  public @NotNull String append(@Nullable String uploadId, @NotNull String name, @NotNull String base64Chunk) throws IOException {
+    Upload upload;
+    if (uploadId == null) {
+      upload = start();
+    } else {
+      upload = uploads.get(uploadId);
+      if (upload == null) {
+        throw new IllegalArgumentException("Upload not found: " + uploadId);
+      }
+    }
+    byte[] chunk = Base64.getDecoder().decode(base64Chunk);
+    synchronized (upload) {
+      if (upload.size + chunk.length > MailAttachments.MAX_ATTACHMENT_SIZE) {
+        remove(upload.id);
+        throw new IllegalArgumentException("Attachment '%s' exceeds max size of %d MB"
+          .formatted(name, MailAttachments.MAX_ATTACHMENT_SIZE / 1024 / 1024));
+      }
+      Files.write(upload.file, chunk, StandardOpenOption.APPEND);
+      upload.size += chunk.length;
+      upload.lastAccess = System.currentTimeMillis();
+    }
+    return upload.id;
+  }
+
+  private synchronized Upload start() throws IOException {
+    if (uploads.size() >= MAX_UPLOADS) {
+      evictStale();
+      if (uploads.size() >= MAX_UPLOADS) {
+        throw new IllegalStateException("Too many attachment uploads in progress: " + uploads.size());
+      }
+    }
+    Upload upload = new Upload(UUID.randomUUID().toString(), MailAttachments.createTempFile("mail_upload_"));
+    uploads.put(upload.id, upload);
+    return upload;
+  }
+
+  /**
+   * Detach uploaded file. Caller becomes responsible to delete it
+   */
+  public @NotNull Path take(@NotNull String uploadId) {
+    Upload upload = uploads.remove(uploadId);
+    if (upload == null) {
+      throw new IllegalArgumentException("Upload not found: " + uploadId);
+    }
+    return upload.file;
+  }
+
+  /**
+   * Remove uploads of mails that never were sent
+   */
+  public void evictStale() {
+    long staleTime = System.currentTimeMillis() - UPLOAD_TTL.toMillis();
+    uploads.values().removeIf(upload -> {
+      if (upload.lastAccess < staleTime) {
+        MailAttachments.delete(upload.file);
+        return true;
+      }
+      return false;
+    });
+  }
+
+  public void close() {
+    uploads.keySet().forEach(this::remove);
+  }
+
+  private void remove(String uploadId) {
+    Upload upload = uploads.remove(uploadId);
+    if (upload != null) {
+      MailAttachments.delete(upload.file);
+    }
+  }
+
+  private static final class Upload {
+    private final String id;
+    private final Path file;
+    private long size;
+    private long lastAccess = System.currentTimeMillis();
+
+    private Upload(String id, Path file) {
+      this.id = id;
+      this.file = file;
+    }
+  }
+}
@@ -1,16 +1,11 @@
 package org.homio.addon.mail;
 
+import com.fasterxml.jackson.databind.JsonNode;
 import com.pivovarit.function.ThrowingBiConsumer;
-import com.pivovarit.function.ThrowingFunction;
-import com.pivovarit.function.ThrowingPredicate;
-import jakarta.mail.Address;
-import jakarta.mail.BodyPart;
-import jakarta.mail.Folder;
-import jakarta.mail.Message;
-import jakarta.mail.internet.MimeMultipart;
 import lombok.AllArgsConstructor;
 import lombok.SneakyThrows;
 import lombok.extern.log4j.Log4j2;
+import org.homio.addon.mail.MailService.MessageWrapper;
 import org.homio.api.Context;
 import org.homio.api.state.DecimalType;
 import org.homio.api.state.RawType;
@@ -19,15 +14,19 @@ import org.homio.api.workspace.WorkspaceBlock;
 import org.homio.api.workspace.scratch.MenuBlock;
 import org.homio.api.workspace.scratch.Scratch3Block;
 import org.homio.api.workspace.scratch.Scratch3ExtensionBlocks;
-import org.jsoup.Jsoup;
 import org.springframework.http.MediaType;
 import org.springframework.stereotype.Component;
 
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.function.Predicate;
 
 @Log4j2
 @Component
@@ -35,12 +34,13 @@ public class Scratch3MailBlocks extends Scratch3ExtensionBlocks {
 
   private final MenuBlock.ServerMenuBlock mailMenu;
   private final MenuBlock.StaticMenuBlock<MailService.MailCountFilter> mailCountFilterMenu;
+  private final MenuBlock.StaticMenuBlock<MailDelivery> mailDeliveryMenu;
 
   private final Scratch3Block attachFileCommand;
 
   private final Scratch3Block mailCountReporter;
+  private final Scratch3Block searchMailsReporter;
   private final Scratch3Block whenGotMailHat;
-  private Integer lastMessageCount;
 
   public Scratch3MailBlocks(Context context, MailEntrypoint mailEntrypoint) {
     super("#8F4D77", context, mailEntrypoint, null);
@@ -49,6 +49,7 @@ public class Scratch3MailBlocks extends Scratch3ExtensionBlocks {
     // Menu
     this.mailMenu = menuServerItems("mailEntity", MailEntity.class, "Select Mail");
     this.mailCountFilterMenu = menuStatic("mailCountFilter", MailService.MailCountFilter.class, MailService.MailCountFilter.total);
+    this.mailDeliveryMenu = menuStatic("mailDelivery", MailDelivery.class, MailDelivery.queue);
 
     // Hats
     this.whenGotMailHat = withMail(blockHat(20, "get_mail",
@@ -64,12 +65,18 @@ public class Scratch3MailBlocks extends Scratch3ExtensionBlocks {
     this.mailCountReporter.addArgument("FOLDER", "INBOX");
     this.mailCountReporter.appendSpace();
 
+    this.searchMailsReporter = withMail(blockReporter(50, "search_mails",
+      "Search [QUERY] in mails of [MAIL]", this::searchMailsReporter));
+    this.searchMailsReporter.addArgument("QUERY", "invoice");
+    this.searchMailsReporter.appendSpace();
+
     // commands
     Scratch3Block sendMailCommand = withMail(blockCommand(100, "send_mail",
-      "Send mail [TITLE] to [RECIPIENTS] of [MAIL] with body [BODY]", this::sendMailCommand));
+      "Send mail [TITLE] to [RECIPIENTS] of [MAIL] with body [BODY] and [DELIVERY]", this::sendMailCommand));
     sendMailCommand.addArgument("TITLE", "title");
     sendMailCommand.addArgument("RECIPIENTS", "receiver@mail.com");
     sendMailCommand.addArgument("BODY", "<b>body</b>");
+    sendMailCommand.addArgument("DELIVERY", this.mailDeliveryMenu);
 
     this.attachFileCommand = blockCommand(130, MailApplyHandler.update_add_file.name(),
       "Attach file[VALUE]", this::skipExpression);
@@ -83,76 +90,49 @@ public class Scratch3MailBlocks extends Scratch3ExtensionBlocks {
     return new DecimalType(mailEntity.getService().getMailCount(mailCountFilter, folder));
   }
 
-  private void whenGotMailHat(WorkspaceBlock workspaceBlock) {
-    String subject = workspaceBlock.getInputString("SUBJECT");
-    String from = workspaceBlock.getInputString("FROM");
-    handleNextWhenGotNewMessages(workspaceBlock, message -> {
-      // test from address
-      if (!from.isEmpty() && !from.equals("-")) {
-        boolean passMessage = false;
-        for (Address fromAddress : message.getFrom()) {
-          if (fromAddress.toString().contains(from)) {
-            passMessage = true;
-          }
-        }
-        if (!passMessage) {
-          return false;
-        }
-      }
-
-      return subject.isEmpty() || subject.equals("-") ||
-             Objects.toString(message.getSubject(), "").contains(subject);
-    });
-  }
-
-  private void handleNextWhenGotNewMessages(WorkspaceBlock workspaceBlock,
-                                            ThrowingPredicate<Message, Exception> acceptMessage) {
-    handleHat(workspaceBlock, mailbox -> {
-      // search for new messages
-      int messageCount = mailbox.getMessageCount();
-      if (lastMessageCount != null && messageCount > lastMessageCount) {
-        for (int i = lastMessageCount; i < messageCount; i++) {
-          Message message = mailbox.getMessage(i + 1);
-          if (acceptMessage.test(message)) {
-            lastMessageCount = messageCount;
-            return message;
-          }
-        }
-      }
-      lastMessageCount = messageCount;
-      return null;
-    });
+  private State searchMailsReporter(WorkspaceBlock workspaceBlock) {
+    MailEntity mailEntity = getMailEntity(workspaceBlock);
+    JsonNode result = mailEntity.getService().searchMails(workspaceBlock.getInputString("QUERY"), 100);
+    return new RawType(result.get("items").toString().getBytes(StandardCharsets.UTF_8),
+      MediaType.APPLICATION_JSON_VALUE, "mails");
   }
 
-  private void handleHat(WorkspaceBlock workspaceBlock, ThrowingFunction<Folder, Message, Exception> handler) {
+  private void whenGotMailHat(WorkspaceBlock workspaceBlock) {
+    Predicate<MessageWrapper> filter = createMailFilter(
+      workspaceBlock.getInputString("SUBJECT"),
+      workspaceBlock.getInputString("FROM"));
     workspaceBlock.handleNext(next -> {
       MailEntity mailEntity = getMailEntity(workspaceBlock);
-
-      mailEntity.getService().registerHandler(workspaceBlock.getBlockId(), store -> {
-        try (Folder mailbox = store.getFolder(mailEntity.getDefFolder())) {
-          mailbox.open(Folder.READ_ONLY);
-          Message message = handler.apply(mailbox);
-          if (message != null) {
-            String text = null;
-            if (message.isMimeType("text/plain")) {
-              text = message.getContent().toString();
-            } else if (message.isMimeType("multipart/*")) {
-              MimeMultipart mimeMultipart = (MimeMultipart) message.getContent();
-              text = getTextFromMimeMultipart(mimeMultipart);
-            }
-            workspaceBlock.setValue(new RawType(Objects.toString(text, "").getBytes(),
-              MediaType.TEXT_PLAIN_VALUE, message.getSubject()));
-            next.handle();
-          }
-        } catch (Exception ex) {
-          log.error("Error when fetching mails from server", ex);
-        }
-      });
-
-      workspaceBlock.onRelease(() -> mailEntity.getService().releaseHandler(workspaceBlock.getBlockId()));
+      MailService service = mailEntity.getService();
+      String folder = mailEntity.getDefFolder();
+
+      service.subscribeNewMails(workspaceBlock.getBlockId(),
+        message -> folder.equals(message.getFolder()) && filter.test(message),
+        message -> {
+          String text = service.getMailText(message);
+          workspaceBlock.setValue(new RawType(Objects.toString(text, "").getBytes(),
+            MediaType.TEXT_PLAIN_VALUE, message.getSubject()));
+          next.handle();
+        });
+
+      workspaceBlock.onRelease(() -> service.releaseNewMailsSubscription(workspaceBlock.getBlockId()));
     });
   }
 
+  /**
+   * Build filter once per hat instead of evaluate block inputs on every new mail
+   */
+  private static Predicate<MessageWrapper> createMailFilter(String subject, String from) {
+    Predicate<MessageWrapper> filter = message -> true;
+    if (!from.isEmpty() && !from.equals("-")) {
+      filter = filter.and(message -> Objects.toString(message.getSender(), "").contains(from));
+    }
+    if (!subject.isEmpty() && !subject.equals("-")) {
+      filter = filter.and(message -> Objects.toString(message.getSubject(), "").contains(subject));
+    }
+    return filter;
+  }
+
   private MailEntity getMailEntity(WorkspaceBlock workspaceBlock) {
     return workspaceBlock.getMenuValueEntityRequired("MAIL", this.mailMenu);
   }
@@ -161,16 +141,42 @@ public class Scratch3MailBlocks extends Scratch3ExtensionBlocks {
     // skip expression
   }
 
+  /**
+   * Mail is queued to outbox. Full outbox fails block right away. Send failure is reported to block when outbox
+   * gives up, or fails block if it waits for delivery
+   */
   @SneakyThrows
   private void sendMailCommand(WorkspaceBlock workspaceBlock) {
     MailEntity mailEntity = getMailEntity(workspaceBlock);
+    String title = workspaceBlock.getInputString("TITLE");
     MailBuilder mailBuilder = new MailBuilder(mailEntity,
-      workspaceBlock.getInputString("TITLE"),
+      title,
       workspaceBlock.getInputString("BODY"),
       workspaceBlock.getInputString("RECIPIENTS"));
     applyParentBlocks(mailBuilder, workspaceBlock.getParent());
 
-    mailBuilder.sendMail();
+    CompletableFuture<String> result;
+    try {
+      result = mailBuilder.sendMail();
+    } catch (IllegalStateException ex) {
+      // outbox is full or stopped
+      workspaceBlock.logErrorAndThrow("Unable to send mail '{}': {}", title, ex.getMessage());
+      return;
+    }
+    if (workspaceBlock.getMenuValue("DELIVERY", this.mailDeliveryMenu) == MailDelivery.wait) {
+      try {
+        result.get();
+      } catch (ExecutionException ex) {
+        workspaceBlock.logErrorAndThrow("Mail '{}' was not sent: {}", title, ex.getCause().getMessage());
+      }
+    } else {
+      result.whenComplete((messageID, ex) -> {
+        if (ex != null) {
+          Throwable cause = ex instanceof CompletionException && ex.getCause() != null ? ex.getCause() : ex;
+          workspaceBlock.logError("Mail '{}' was not sent: {}", title, cause.getMessage());
+        }
+      });
+    }
   }
 
   @SneakyThrows
@@ -187,24 +193,11 @@ public class Scratch3MailBlocks extends Scratch3ExtensionBlocks {
     return scratch3Block;
   }
 
-  @SneakyThrows
-  private String getTextFromMimeMultipart(
-    MimeMultipart mimeMultipart)  {
-    StringBuilder result = new StringBuilder();
-    int count = mimeMultipart.getCount();
-    for (int i = 0; i < count; i++) {
-      BodyPart bodyPart = mimeMultipart.getBodyPart(i);
-      if (bodyPart.isMimeType("text/plain")) {
-        result.append("\n").append(bodyPart.getContent());
-        break; // without break same text appears twice in my tests
-      } else if (bodyPart.isMimeType("text/html")) {
-        String html = (String) bodyPart.getContent();
-        result.append("\n").append(Jsoup.parse(html).text());
-      } else if (bodyPart.getContent() instanceof MimeMultipart) {
-        result.append(getTextFromMimeMultipart((MimeMultipart) bodyPart.getContent()));
-      }
-    }
-    return result.toString();
+  public enum MailDelivery {
+    // continue once mail is in outbox
+    queue,
+    // continue once SMTP server accepted mail
+    wait
   }
 
   @AllArgsConstructor
@@ -230,9 +223,7 @@ public class Scratch3MailBlocks extends Scratch3ExtensionBlocks {
     private final ThrowingBiConsumer<WorkspaceBlock, MailBuilder, Exception> applyFn;
 
     private static void writeAsByteArray(WorkspaceBlock workspaceBlock, MailBuilder mailBuilder) throws IOException {
-      Path attachment = Files.createTempFile("mail_attachment_" + workspaceBlock.hashCode(), "tmp");
-      Files.write(attachment, workspaceBlock.getInputByteArray(VALUE));
-      mailBuilder.withFileAttachment(attachment.toString());
+      mailBuilder.withFileAttachment("mail_attachment_" + workspaceBlock.hashCode(), workspaceBlock.getInputByteArray(VALUE));
     }
   }
 }
@@ -1,6 +1,11 @@
 class MailWidget extends HTMLElement {
     searchQuery = '';
     mails = [];
+    folder = null;
+    counts = {all: 0, unread: 0, attachments: 0};
+    total = 0;
+    // cursor of each loaded page, first page has no cursor
+    pageCursors = [null];
     currentPage = 1;
     itemsPerPage = 10;
     sortBy = 'date';
@@ -8,17 +13,66 @@ class MailWidget extends HTMLElement {
     currentFilter = 'all';
     isComposeOpen = false;
     attachments = [];
+    selected = new Set();
 
     setContext(widget) {
         this.widget = widget;
         widget.dataWarehouse.subscribe(data => {
-            this.mails = data || [];
+            if (!data) {
+                return;
+            }
+            this.folder = data.folder;
+            this.counts = data.counts;
             if(!this.viewingMail && !this.isComposeOpen) {
-                this.render();
+                this.applyChanges(data);
             }
         });
     }
 
+    // server pushes only mails changed since last received version
+    applyChanges(data) {
+        const pageIds = new Set(this.mails.map(mail => mail.id));
+        const pageShifted = data.reset
+            || (data.added?.length > 0 && this.currentPage === 1)
+            || data.removed?.some(id => pageIds.has(id));
+        if (pageShifted) {
+            this.loadPage();
+            return;
+        }
+        (data.changed || []).forEach(changed => {
+            const index = this.mails.findIndex(mail => mail.id === changed.id);
+            if (index !== -1) {
+                this.mails[index] = changed;
+            }
+        });
+        this.render();
+    }
+
+    // server filters, sorts and pages mails, widget holds only visible page
+    loadPage() {
+        const request = {
+            folder: this.folder,
+            query: this.searchQuery,
+            filter: this.currentFilter,
+            sortBy: this.sortBy,
+            sortDir: this.sortDir,
+            limit: this.itemsPerPage,
+            cursor: this.pageCursors[this.currentPage - 1]
+        };
+        this.widget.callService('queryMails', request).subscribe(page => {
+            this.mails = page.items || [];
+            this.total = page.total;
+            this.counts = page.counts;
+            this.pageCursors[this.currentPage] = page.nextCursor;
+            this.render();
+        });
+    }
+
+    resetPaging() {
+        this.currentPage = 1;
+        this.pageCursors = [null];
+    }
+
     render() {
         if (this.isComposeOpen) {
             this.content.innerHTML = `
@@ -79,36 +133,42 @@ class MailWidget extends HTMLElement {
             this.content.innerHTML = `
             <div class="table-container" style="height: ${this.widget.height}px">
             ${this.viewingMail.html || this.viewingMail.preview || this.viewingMail.description}
+            ${this.renderMailAttachments(this.viewingMail)}
             </div>
             <button class="close-mail-button">X</button>`;
             this.shadowRoot.querySelector('.close-mail-button').addEventListener('click', (e) => {
                 this.viewingMail = null;
-                this.render();
+                this.loadPage();
             });
             return;
         }
-        const filteredMails = this.getFilteredMails();
-        const start = (this.currentPage - 1) * this.itemsPerPage;
-        const end = start + this.itemsPerPage;
-        const paginatedMails = filteredMails.slice(start, end);
-        const totalPages = Math.ceil(filteredMails.length / this.itemsPerPage);
-        const unReadMails = this.mails.filter(mail=>!mail.seen).length;
-        const attachMails = this.mails.filter(mail=>mail.attachments?.length > 0).length;
+        const paginatedMails = this.mails;
+        const totalPages = Math.max(1, Math.ceil(this.total / this.itemsPerPage));
 
         this.content.innerHTML = `
       <div class="mail-widget">
         <div class="filter-controls">
           <button class="filter-btn ${this.currentFilter === 'all' ? 'active' : ''}" 
-                  data-filter="all">All(${this.mails.length})</button>
+                  data-filter="all">All(${this.counts.all})</button>
           <button class="filter-btn ${this.currentFilter === 'unread' ? 'active' : ''}" 
-                  data-filter="unread">Unread(${unReadMails})</button>
+                  data-filter="unread">Unread(${this.counts.unread})</button>
           <button class="filter-btn ${this.currentFilter === 'attachments' ? 'active' : ''}" 
-                  data-filter="attachments">Attach(${attachMails})</button>
+                  data-filter="attachments">Attach(${this.counts.attachments})</button>
                   <div class="search">
           <input value="${this.searchQuery}" class="search-input" placeholder="Search emails...">
-          <div class="counter">${filteredMails.length}</div>
+          <div class="counter">${this.total}</div>
           </div>
             <button class="compose-button">Compose</button>
+            <button class="bulk-button" data-action="markAllRead">Mark all read</button>
+          ${this.selected.size > 0 ? `
+          <div class="bulk-actions">
+            <span>${this.selected.size} selected</span>
+            <button class="bulk-button" data-action="read">Read</button>
+            <button class="bulk-button" data-action="unread">Unread</button>
+            <button class="bulk-button" data-action="flag">Flag</button>
+            <button class="bulk-button" data-action="move">Move</button>
+            <button class="bulk-button" data-action="delete">Delete</button>
+          </div>` : ''}
           <div class="pagination-controls">
   <button class="page-button prev-button" 
           ${this.currentPage === 1 ? 'disabled' : ''}>
@@ -122,7 +182,7 @@ class MailWidget extends HTMLElement {
             </select> 
            </span>
   <button class="page-button next-button" 
-          ${this.currentPage === totalPages ? 'disabled' : ''}>
+          ${this.pageCursors[this.currentPage] ? '' : 'disabled'}>
     >
   </button>
         </div>        
@@ -132,6 +192,9 @@ class MailWidget extends HTMLElement {
         <table class="mail-table">
           <thead>
             <tr>
+              <th class="select-cell">
+                <input type="checkbox" class="select-all" ${paginatedMails.length > 0 && paginatedMails.every(mail => this.selected.has(mail.id)) ? 'checked' : ''}>
+              </th>
               <th class="sender-cell sort-header" data-sort="sender">
                 Sender
                 ${this.sortBy === 'sender' ?
@@ -153,6 +216,9 @@ class MailWidget extends HTMLElement {
           <tbody>
             ${paginatedMails.map(mail => `
               <tr class="mail-row ${mail.seen ? '' : 'unread'}" data-id="${mail.id}">
+                <td class="select-cell">
+                  <input type="checkbox" class="select-mail" data-id="${mail.id}" ${this.selected.has(mail.id) ? 'checked' : ''}>
+                </td>
                 <td>
                   ${mail.attachments?.length > 0 ? '<span class="attachment-icon">📎</span>' : ''}
                   ${mail.sender}
@@ -186,7 +252,8 @@ class MailWidget extends HTMLElement {
 
         this.shadowRoot.querySelector('.items-per-page-select').addEventListener('change', (e) => {
             this.itemsPerPage = parseInt(e.target.value, 10);
-            this.render();
+            this.resetPaging();
+            this.loadPage();
         });
         this.shadowRoot.querySelectorAll('.sort-header').forEach(header => {
             header.addEventListener('click', (e) => this.handleSort(e));
@@ -200,6 +267,18 @@ class MailWidget extends HTMLElement {
             btn.addEventListener('click', (e) => this.deleteMail(e));
         });
 
+        this.shadowRoot.querySelectorAll('.select-mail').forEach(checkbox => {
+            checkbox.addEventListener('click', (e) => this.toggleSelection(e));
+        });
+        this.shadowRoot.querySelector('.select-all')?.addEventListener('click', () => {
+            const allSelected = paginatedMails.every(mail => this.selected.has(mail.id));
+            paginatedMails.forEach(mail => allSelected ? this.selected.delete(mail.id) : this.selected.add(mail.id));
+            this.render();
+        });
+        this.shadowRoot.querySelectorAll('.bulk-button').forEach(btn => {
+            btn.addEventListener('click', (e) => this.bulkAction(e.target.dataset.action));
+        });
+
         this.shadowRoot.querySelectorAll('.mail-row').forEach(row => {
             row.addEventListener('click', (e) => this.viewMail(e));
         });
@@ -217,28 +296,46 @@ class MailWidget extends HTMLElement {
             this.sortBy = sortField;
             this.sortDir = 'desc';
         }
-        this.currentPage = 1;
-        this.render();
+        this.resetPaging();
+        this.loadPage();
     }
 
-    sendMail(event) {
+    async sendMail(event) {
         event.preventDefault();
         const to = this.shadowRoot.querySelector('#toInput').value;
         const subject = this.shadowRoot.querySelector('#subjectInput').value;
         const body = this.shadowRoot.querySelector('#messageInput').value;
-        const fileInput = this.shadowRoot.querySelector('#attachmentInput');
-        const file = fileInput.files[0];
-
-        const formData = new FormData();
-        formData.append('to', to);
-        formData.append('subject', subject);
-        formData.append('body', body);
-        if (file) {
-            formData.append('attachment', file);
+        const files = [];
+        for (const input of this.shadowRoot.querySelectorAll('.attachmentInput')) {
+            if (input.files.length > 0) {
+                const file = input.files[0];
+                files.push({name: file.name, uploadId: await this.uploadAttachment(file)});
+            }
         }
+        this.widget.callService('sendMail', {to, subject, body, files}).subscribe(() => {
+            this.closeComposeForm();
+        });
+    }
 
-        this.widget.callService('sendMail', formData).subscribe(response => {
-            // this.closeComposeForm();
+    // upload file by chunks, so big attachment never sent within single request
+    async uploadAttachment(file) {
+        const chunkSize = 512 * 1024;
+        let uploadId = null;
+        for (let offset = 0; offset < file.size || uploadId === null; offset += chunkSize) {
+            const data = await this.readAsBase64(file.slice(offset, offset + chunkSize));
+            const response = await new Promise((resolve, reject) =>
+                this.widget.callService('uploadAttachment', {uploadId, name: file.name, data}).subscribe(resolve, reject));
+            uploadId = response.uploadId;
+        }
+        return uploadId;
+    }
+
+    readAsBase64(blob) {
+        return new Promise((resolve, reject) => {
+            const reader = new FileReader();
+            reader.onload = () => resolve(reader.result.substring(reader.result.indexOf(',') + 1));
+            reader.onerror = () => reject(reader.error);
+            reader.readAsDataURL(blob);
         });
     }
 
@@ -258,43 +355,84 @@ class MailWidget extends HTMLElement {
         }
         this.searchQuery = event.target.value;
         this.searchTimeout = setTimeout(() => {
-            this.currentPage = 1;
-            this.render();
+            this.resetPaging();
+            this.loadPage();
         }, 1000);
     }
 
     handleFilter(event) {
         this.currentFilter = event.target.dataset.filter;
-        this.currentPage = 1;
-        this.render();
+        this.resetPaging();
+        this.loadPage();
     }
 
     prevPage() {
         if (this.currentPage > 1) {
             this.currentPage--;
-            this.render();
+            this.loadPage();
         }
     }
 
     nextPage() {
-        const totalPages = Math.ceil(this.getFilteredMails().length / this.itemsPerPage);
-        if (this.currentPage < totalPages) {
+        if (this.pageCursors[this.currentPage]) {
             this.currentPage++;
-            this.render();
+            this.loadPage();
         }
     }
 
     deleteMail(event) {
+        event.stopPropagation();
         const id = event.target.dataset.id;
-        const index = this.mails.findIndex(m => m.id === id);
-        if (index !== -1) {
-            const confirmed = window.confirm("Are you sure you want to delete this email?");
-            if (confirmed) {
-                this.mails.splice(index, 1);
-                this.render();
-            }
+        if (window.confirm("Are you sure you want to delete this email?")) {
+            this.widget.callService('deleteMails', {ids: [id]}).subscribe(() => {
+                this.selected.delete(id);
+                this.loadPage();
+            });
         }
+    }
+
+    toggleSelection(event) {
         event.stopPropagation();
+        const id = event.target.dataset.id;
+        if (event.target.checked) {
+            this.selected.add(id);
+        } else {
+            this.selected.delete(id);
+        }
+        this.render();
+    }
+
+    // server applies action once per folder for all selected mails
+    bulkAction(action) {
+        const ids = [...this.selected];
+        let request;
+        switch (action) {
+            case 'read':
+            case 'unread':
+                request = this.widget.callService('setMailsFlag', {ids, flag: 'seen', value: action === 'read'});
+                break;
+            case 'flag':
+                request = this.widget.callService('setMailsFlag', {ids, flag: 'flagged', value: true});
+                break;
+            case 'move':
+                const target = window.prompt("Move selected emails to folder:");
+                if (!target) return;
+                request = this.widget.callService('moveMails', {ids, target});
+                break;
+            case 'delete':
+                if (!window.confirm(`Are you sure you want to delete ${ids.length} emails?`)) return;
+                request = this.widget.callService('deleteMails', {ids});
+                break;
+            case 'markAllRead':
+                request = this.widget.callService('markAllRead', {});
+                break;
+            default:
+                return;
+        }
+        request.subscribe(() => {
+            this.selected.clear();
+            this.loadPage();
+        });
     }
 
     viewMail(event) {
@@ -308,6 +446,7 @@ class MailWidget extends HTMLElement {
             this.content.innerHTML = `<div class="loading-spinner">Loading...</div>`;
             this.widget.callService('getFullMailBody', {id: this.viewingMail.id}).subscribe(data => {
                 this.viewingMail.html = data.body;
+                this.viewingMail.files = data.attachments;
                 this.render();
             });
         } else {
@@ -315,6 +454,35 @@ class MailWidget extends HTMLElement {
         }
     }
 
+    renderMailAttachments(mail) {
+        if (!mail.files?.length) {
+            return '';
+        }
+        // file name comes from sender, so it's escaped before it's put into markup
+        return `<div class="mail-attachments">${mail.files.map(file =>
+            `<a class="mail-attachment" href="${this.escapeHtml(file.url)}" download="${this.escapeHtml(file.name)}">📎 ${this.escapeHtml(file.name)}
+                <span class="attachment-size">${this.formatSize(file.size)}</span></a>`).join('')}</div>`;
+    }
+
+    escapeHtml(value) {
+        return String(value ?? '')
+            .replace(/&/g, '&amp;')
+            .replace(/</g, '&lt;')
+            .replace(/>/g, '&gt;')
+            .replace(/"/g, '&quot;')
+            .replace(/'/g, '&#39;');
+    }
+
+    formatSize(size) {
+        if (size < 0) {
+            return '';
+        }
+        if (size < 1024 * 1024) {
+            return `${Math.ceil(size / 1024)} KB`;
+        }
+        return `${(size / 1024 / 1024).toFixed(1)} MB`;
+    }
+
     formatDate(date) {
         const now = new Date();
         const inputDate = new Date(date);
@@ -339,48 +507,6 @@ class MailWidget extends HTMLElement {
             }
         }
     }
-
-    getFilteredMails() {
-        let filtered = this.mails.filter(mail => {
-            if (this.searchQuery) {
-                const query = this.searchQuery.toLowerCase();
-                if(!(mail.sender.toLowerCase().includes(query) ||
-                    mail.subject.toLowerCase().includes(query) ||
-                    mail.preview?.toLowerCase().includes(query))) {
-                    return false
-                }
-            }
-            if (this.currentFilter === 'unread') return !mail.seen;
-            if (this.currentFilter === 'attachments') return mail.attachments?.length > 0;
-            return true;
-        });
-
-        filtered.sort((a, b) => {
-            let valA, valB;
-            switch (this.sortBy) {
-                case 'sender':
-                    valA = a.sender.toLowerCase();
-                    valB = b.sender.toLowerCase();
-                    break;
-                case 'date':
-                    valA = a.receivedDate || 0;
-                    valB = b.receivedDate || 0;
-                    break;
-                case 'subject':
-                    valA = a.subject.toLowerCase();
-                    valB = b.subject.toLowerCase();
-                    break;
-                default:
-                    return 0;
-            }
-
-            if (valA < valB) return this.sortDir === 'asc' ? -1 : 1;
-            if (valA > valB) return this.sortDir === 'asc' ? 1 : -1;
-            return 0;
-        });
-
-        return filtered;
-    }
 }
 
 customElements.define("mail-widget", MailWidget);
\ No newline at end of file
@@ -0,0 +1,82 @@
+package org.homio.addon.mail;
+
+import org.homio.addon.mail.MailDiskCache.FolderState;
+import org.homio.addon.mail.MailService.MessageWrapper;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class MailDiskCacheTest {
+
+  @TempDir
+  Path directory;
+
+  @Test
+  void replayAppliesSeenAndDeleteInWriteOrder() {
+    MailDiskCache cache = new MailDiskCache(directory, "mail_1");
+    cache.writeFolder("INBOX", new FolderState(7, 2, 100), List.of(mail("INBOX", 1), mail("INBOX", 2)));
+    cache.writeMail(mail("INBOX", 3), 7);
+    cache.writeSeen("INBOX", List.of("INBOX/7/1", "INBOX/7/3"), true);
+    cache.writeSeen("INBOX", List.of("INBOX/7/3"), false);
+    cache.writeDelete("INBOX", "INBOX/7/2");
+    // seen of unknown mail is ignored
+    cache.writeSeen("Sent", List.of("Sent/7/1"), true);
+
+    MailDiskCache.Content content = new MailDiskCache(directory, "mail_1").load();
+    assertEquals(Map.of("INBOX", new FolderState(7, 2, 100)), content.states());
+    List<MessageWrapper> messages = sorted(content.messages());
+    assertEquals(List.of("INBOX/7/1", "INBOX/7/3"), messages.stream().map(MessageWrapper::getId).toList());
+    assertTrue(messages.get(0).isSeen());
+    assertFalse(messages.get(1).isSeen());
+    assertEquals("preview 1", messages.get(0).getPreview());
+    assertEquals(Set.of("file1.pdf"), messages.get(0).getAttachments());
+  }
+
+  @Test
+  void newUidValidityDropsCachedMailsOfFolder() {
+    MailDiskCache cache = new MailDiskCache(directory, "mail_1");
+    cache.writeFolder("INBOX", new FolderState(7, 1, 100), List.of(mail("INBOX", 1)));
+    cache.writeFolder("Sent", new FolderState(3, 1, 100), List.of(mail("Sent", 1)));
+    cache.writeFolder("INBOX", new FolderState(8, 0, 200), List.of());
+    // mail of old UIDVALIDITY written after folder was reset isn't returned either
+    cache.writeMail(mail("INBOX", 2), 7);
+
+    MailDiskCache.Content content = cache.load();
+    assertEquals(new FolderState(8, 0, 200), content.states().get("INBOX"));
+    assertEquals(List.of("Sent/7/1"), content.messages().stream().map(MessageWrapper::getId).toList());
+  }
+
+  @Test
+  void truncatedLastLineKeepsEntriesBeforeIt() throws Exception {
+    MailDiskCache cache = new MailDiskCache(directory, "mail_1");
+    cache.writeFolder("INBOX", new FolderState(7, 1, 100), List.of(mail("INBOX", 1)));
+    Files.writeString(directory.resolve("mail_1.jsonl"), "{\"type\":\"mail\",\"fol",
+      StandardOpenOption.APPEND);
+
+    MailDiskCache.Content content = cache.load();
+    assertEquals(List.of("INBOX/7/1"), content.messages().stream().map(MessageWrapper::getId).toList());
+  }
+
+  private static List<MessageWrapper> sorted(List<MessageWrapper> messages) {
+    return messages.stream().sorted(Comparator.comparing(MessageWrapper::getId)).toList();
+  }
+
+  private static MessageWrapper mail(String folder, int uid) {
+    MessageWrapper message = new MessageWrapper("%s/7/%d".formatted(folder, uid), "subject " + uid, folder,
+      "sender@mail", null, uid, uid, new Date(uid * 1000L), 100, false, Set.of("file" + uid + ".pdf"));
+    message.setPreview("preview " + uid);
+    return message;
+  }
+}
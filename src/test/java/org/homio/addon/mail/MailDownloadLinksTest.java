@@ -0,0 +1,47 @@
+package org.homio.addon.mail;
+
+import org.junit.jupiter.api.Test;
+
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class MailDownloadLinksTest {
+
+  @Test
+  void issuedLinkIsValidOnlyForSamePart() {
+    String url = MailDownloadLinks.create("mail_1", "INBOX/7/42", "2.1");
+    assertTrue(url.startsWith("/rest/mail/mail_1/attachment?"));
+    Map<String, String> params = parseQuery(url);
+    assertEquals("INBOX/7/42", params.get("id"));
+    long expires = Long.parseLong(params.get("expires"));
+    String signature = params.get("sig");
+
+    assertTrue(MailDownloadLinks.verify("mail_1", "INBOX/7/42", "2.1", expires, signature));
+    assertFalse(MailDownloadLinks.verify("mail_1", "INBOX/7/42", "3", expires, signature));
+    assertFalse(MailDownloadLinks.verify("mail_1", "INBOX/7/43", "2.1", expires, signature));
+    assertFalse(MailDownloadLinks.verify("mail_2", "INBOX/7/42", "2.1", expires, signature));
+    assertFalse(MailDownloadLinks.verify("mail_1", "INBOX/7/42", "2.1", expires + 1, signature));
+    assertFalse(MailDownloadLinks.verify("mail_1", "INBOX/7/42", "2.1", expires, "forged"));
+  }
+
+  @Test
+  void expiredLinkIsRejected() {
+    Map<String, String> params = parseQuery(MailDownloadLinks.create("mail_1", "INBOX/7/42", "2"));
+    assertFalse(MailDownloadLinks.verify("mail_1", "INBOX/7/42", "2", System.currentTimeMillis() - 1, params.get("sig")));
+  }
+
+  private static Map<String, String> parseQuery(String url) {
+    Map<String, String> params = new HashMap<>();
+    for (String pair : url.substring(url.indexOf('?') + 1).split("&")) {
+      int separator = pair.indexOf('=');
+      params.put(pair.substring(0, separator), URLDecoder.decode(pair.substring(separator + 1), StandardCharsets.UTF_8));
+    }
+    return params;
+  }
+}
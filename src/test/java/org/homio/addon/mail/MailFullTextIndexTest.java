@@ -0,0 +1,57 @@
+package org.homio.addon.mail;
+
+import org.homio.addon.mail.MailFullTextIndex.Backfill;
+import org.homio.addon.mail.MailService.MessageWrapper;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Date;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class MailFullTextIndexTest {
+
+  @TempDir
+  Path directory;
+
+  @Test
+  void wholeTextIsSearchable() {
+    MailFullTextIndex index = new MailFullTextIndex(directory, "mail_1");
+    String text = "word ".repeat(5000) + "Lucid plan";
+    index.add(List.of(MailFullTextIndex.Doc.of(mail("INBOX/7/1"), List.of(text))));
+    assertEquals(List.of("INBOX/7/1"), index.search("luc pla", 10).stream().map(MailFullTextIndex.Doc::id).toList());
+    assertTrue(index.contains("INBOX/7/1"));
+    assertFalse(index.isFull());
+  }
+
+  @Test
+  void backfillPositionSurvivesReload() throws Exception {
+    MailFullTextIndex index = new MailFullTextIndex(directory, "mail_1");
+    assertNull(index.getBackfill("INBOX"));
+    index.add(List.of(MailFullTextIndex.Doc.of(mail("INBOX/7/10"), List.of("report"))));
+    index.setBackfill(new Backfill("INBOX", 7, 10, 11));
+    index.setBackfill(new Backfill("INBOX", 7, 1, 11));
+    index.setBackfill(new Backfill("INBOX", 7, 1, 11));
+    index.setBackfill(new Backfill("Archive", 3, 5, 20));
+    // unchanged position isn't written again
+    assertEquals(4, Files.readAllLines(directory.resolve("mail_1.jsonl")).size());
+
+    MailFullTextIndex reloaded = new MailFullTextIndex(directory, "mail_1");
+    reloaded.load();
+    assertEquals(new Backfill("INBOX", 7, 1, 11), reloaded.getBackfill("INBOX"));
+    assertEquals(new Backfill("Archive", 3, 5, 20), reloaded.getBackfill("Archive"));
+    assertEquals(1, reloaded.size());
+    assertTrue(reloaded.contains("INBOX/7/10"));
+  }
+
+  private static MessageWrapper mail(String id) {
+    return new MessageWrapper(id, "subject", "INBOX", "sender@mail", null, 1, 1, new Date(1000), 100, false, Set.of());
+  }
+}
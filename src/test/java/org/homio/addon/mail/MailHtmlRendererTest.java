@@ -0,0 +1,54 @@
+package org.homio.addon.mail;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+class MailHtmlRendererTest {
+
+  @Test
+  void plainTextIsWrappedAndKeptAsIs() {
+    assertEquals("<html><body>Lucid: the plan<br>cid:x stays</body></html>",
+      MailHtmlRenderer.render("Lucid: the plan\r\ncid:x stays", true));
+  }
+
+  @Test
+  void htmlKeepsCidLinks() {
+    String html = "<p>Lucid: the plan</p>\r\n<img src=\"cid:unknown@mail\"><br/><img src=\"cid:logo\">";
+    assertEquals("<p>Lucid: the plan</p>\n<img src=\"cid:unknown@mail\"><img src=\"cid:logo\">",
+      MailHtmlRenderer.render(html, false));
+  }
+
+  @Test
+  void cidLinksAreResolvedOnlyInAttributes() {
+    String html = "<p>Lucid: see cid:logo</p><img src=\"cid:logo\" alt=\"cid:logo\"><a HREF='cid:doc'>doc</a>"
+      + "<img src=cid:logo><img src=\"cid:unknown@mail\">";
+    Map<String, String> urls = Map.of("logo", "/logo?a=1&b=2", "doc", "/doc");
+    assertEquals("<p>Lucid: see cid:logo</p><img src=\"/logo?a=1&amp;b=2\" alt=\"cid:logo\"><a HREF='/doc'>doc</a>"
+        + "<img src=/logo?a=1&amp;b=2><img src=\"cid:unknown@mail\">",
+      MailHtmlRenderer.resolveCidLinks(html, urls::get));
+  }
+
+  @Test
+  void htmlWithoutKnownCidIsReturnedAsIs() {
+    String html = "<img src=\"cid:unknown\">";
+    assertSame(html, MailHtmlRenderer.resolveCidLinks(html, cid -> null));
+  }
+
+  @Test
+  void plainTextKeepsLinesAfterRendering() {
+    String text = "Hello,\r\n\r\nline one \r\nline  two\r\n-- \r\nsignature";
+    assertEquals("Hello,\n\nline one\nline two\n--\nsignature",
+      MailHtmlRenderer.toText(MailHtmlRenderer.render(text, true)));
+  }
+
+  @Test
+  void htmlBlocksStartNewLine() {
+    String html = "<html><head><style>p {}</style></head><body><h1>Title</h1><p>first <b>bold</b></p>"
+      + "<div>second<br>third</div><ul><li>a</li><li>b</li></ul></body></html>";
+    assertEquals("Title\nfirst bold\nsecond\nthird\na\nb", MailHtmlRenderer.toText(html));
+  }
+}
@@ -0,0 +1,150 @@
+package org.homio.addon.mail;
+
+import jakarta.mail.BodyPart;
+import jakarta.mail.Part;
+import jakarta.mail.Session;
+import jakarta.mail.internet.MimeBodyPart;
+import jakarta.mail.internet.MimeMessage;
+import jakarta.mail.internet.MimeMultipart;
+import org.homio.addon.mail.MailService.MessageWrapper;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.Date;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class MailMimeTreeTest {
+
+  private static final Session SESSION = Session.getInstance(new Properties());
+
+  @Test
+  void nestedMixedRelatedAlternative() throws Exception {
+    MimeMultipart alternative = new MimeMultipart("alternative");
+    alternative.addBodyPart(textPart("plain body", "plain"));
+    alternative.addBodyPart(textPart("<p>html body</p>", "html"));
+
+    MimeMultipart related = new MimeMultipart("related");
+    related.addBodyPart(wrap(alternative));
+    MimeBodyPart logo = new MimeBodyPart();
+    logo.setContent(new byte[]{1, 2, 3}, "image/png");
+    logo.setContentID("<logo@mail>");
+    related.addBodyPart(logo);
+
+    MimeMultipart mixed = new MimeMultipart("mixed");
+    mixed.addBodyPart(wrap(related));
+    mixed.addBodyPart(attachment("report.pdf", "application/pdf"));
+
+    MimeMessage message = reparse(mixed);
+    MailMimeTree tree = MailMimeTree.parse(message);
+
+    assertEquals(4, tree.getParts().size());
+    assertEquals("1.1.1", tree.getText().section());
+    assertEquals("1.1.2", tree.getHtml().section());
+    assertEquals(List.of("1.2"), tree.getInlineImages().stream().map(MailMimeTree.MimeNode::section).toList());
+    assertEquals("logo@mail", tree.getInlineImages().get(0).contentId());
+    assertEquals(Set.of("report.pdf"), tree.getAttachmentNames());
+    assertEquals(MailMimeTree.Kind.attachment, tree.getPart("2").kind());
+
+    Part html = MailMimeTree.findPart(message, "1.1.2");
+    assertTrue(html.getContent().toString().contains("html body"));
+    assertNull(MailMimeTree.findPart(message, "1.3"));
+    assertNull(MailMimeTree.findPart(message, "3"));
+  }
+
+  @Test
+  void singlePart() throws Exception {
+    MimeMessage message = new MimeMessage(SESSION);
+    message.setText("just text", "UTF-8");
+    message = reparse(message);
+    MailMimeTree tree = MailMimeTree.parse(message);
+
+    assertEquals(1, tree.getParts().size());
+    assertEquals("1", tree.getText().section());
+    assertEquals("utf-8", tree.getText().charset().toLowerCase());
+    assertNull(tree.getHtml());
+    assertSame(message, MailMimeTree.findPart(message, "1"));
+    assertNull(MailMimeTree.findPart(message, "2"));
+  }
+
+  @Test
+  void mailWithoutTextHasNoBody() throws Exception {
+    MimeMultipart mixed = new MimeMultipart("mixed");
+    mixed.addBodyPart(attachment("scan.pdf", "application/pdf"));
+    MimeBodyPart invite = new MimeBodyPart();
+    invite.setContent("BEGIN:VCALENDAR\r\nEND:VCALENDAR\r\n", "text/calendar; method=REQUEST");
+    mixed.addBodyPart(invite);
+
+    MimeMessage message = reparse(mixed);
+    MailMimeTree tree = MailMimeTree.parse(message);
+
+    assertNull(tree.getText());
+    assertNull(tree.getHtml());
+    assertEquals(Set.of("scan.pdf"), tree.getAttachmentNames());
+    assertEquals(MailMimeTree.Kind.other, tree.getPart("2").kind());
+
+    // opening such mail must not fail, widget shows preview instead of body
+    MessageWrapper wrapper = new MessageWrapper("INBOX/1/1", "scan", "INBOX", "scanner@local", null, 1, 1,
+      new Date(), 0, false, tree.getAttachmentNames());
+    MailService.readMessageBody(message, wrapper);
+    assertNull(wrapper.getFullBody());
+  }
+
+  @Test
+  void imageOnlyMail() throws Exception {
+    MimeMessage message = new MimeMessage(SESSION);
+    message.setContent(new byte[]{1, 2, 3}, "image/jpeg");
+    message.setFileName("photo.jpg");
+    message = reparse(message);
+    MailMimeTree tree = MailMimeTree.parse(message);
+
+    assertNull(tree.getText());
+    assertNull(tree.getHtml());
+    assertEquals(Set.of("photo.jpg"), tree.getAttachmentNames());
+    assertNotNull(tree.getPart("1"));
+  }
+
+  private static MimeBodyPart textPart(String text, String subtype) throws Exception {
+    MimeBodyPart part = new MimeBodyPart();
+    part.setText(text, "UTF-8", subtype);
+    return part;
+  }
+
+  private static MimeBodyPart attachment(String fileName, String contentType) throws Exception {
+    MimeBodyPart part = new MimeBodyPart();
+    part.setContent(new byte[]{37, 80, 68, 70}, contentType);
+    part.setFileName(fileName);
+    part.setDisposition(Part.ATTACHMENT);
+    return part;
+  }
+
+  private static BodyPart wrap(MimeMultipart multipart) throws Exception {
+    MimeBodyPart part = new MimeBodyPart();
+    part.setContent(multipart);
+    return part;
+  }
+
+  private static MimeMessage reparse(MimeMultipart content) throws Exception {
+    MimeMessage message = new MimeMessage(SESSION);
+    message.setContent(content);
+    return reparse(message);
+  }
+
+  /**
+   * Serialize and parse again, so parts have headers as received from server
+   */
+  private static MimeMessage reparse(MimeMessage message) throws Exception {
+    message.saveChanges();
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    message.writeTo(output);
+    return new MimeMessage(SESSION, new ByteArrayInputStream(output.toByteArray()));
+  }
+}
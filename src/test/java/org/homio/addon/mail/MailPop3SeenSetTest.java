@@ -0,0 +1,59 @@
+package org.homio.addon.mail;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class MailPop3SeenSetTest {
+
+  @TempDir
+  Path directory;
+
+  @Test
+  void emptyMailboxIsSavedSoNextSyncIsNotFirst() {
+    Path file = directory.resolve("pop3").resolve("mail_1.uidl");
+    MailPop3SeenSet seenSet = new MailPop3SeenSet(file);
+    assertFalse(seenSet.exists());
+    seenSet.save();
+    assertTrue(seenSet.exists());
+    assertFalse(new MailPop3SeenSet(file).contains("a"));
+  }
+
+  @Test
+  void setKeepsOnlyUidlsStillOnServer() throws Exception {
+    Path file = directory.resolve("mail_1.uidl");
+    MailPop3SeenSet seenSet = new MailPop3SeenSet(file);
+    seenSet.add(List.of("a", "b", "c"));
+    seenSet.retain(Set.of("b", "c", "d"));
+    seenSet.save();
+
+    MailPop3SeenSet reloaded = new MailPop3SeenSet(file);
+    assertFalse(reloaded.contains("a"));
+    assertTrue(reloaded.contains("b"));
+    assertTrue(reloaded.contains("c"));
+    assertFalse(reloaded.contains("d"));
+    assertEquals(Set.of("b", "c"), Set.copyOf(Files.readAllLines(file)));
+    assertFalse(Files.exists(directory.resolve("mail_1.uidl.tmp")));
+  }
+
+  @Test
+  void unchangedSetIsNotRewritten() throws Exception {
+    Path file = directory.resolve("mail_1.uidl");
+    MailPop3SeenSet seenSet = new MailPop3SeenSet(file);
+    seenSet.add(List.of("a"));
+    seenSet.save();
+    Files.writeString(file, "b\n");
+    seenSet.add(List.of("a"));
+    seenSet.retain(Set.of("a"));
+    seenSet.save();
+    assertEquals("b\n", Files.readString(file));
+  }
+}
@@ -0,0 +1,102 @@
+package org.homio.addon.mail;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.homio.addon.mail.MailService.MessageWrapper;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class MailQueryTest {
+
+  private static final ObjectMapper MAPPER = new ObjectMapper();
+
+  @Test
+  void paramsAreParsedWithDefaultsAndLimitIsClamped() throws Exception {
+    MailQuery query = MailQuery.of(MAPPER.readTree("{}"), "INBOX");
+    assertEquals(new MailQuery("INBOX", null, MailQuery.Filter.all, MailQuery.SortBy.date, true, 10, null), query);
+    assertTrue(query.isNaturalOrder());
+
+    query = MailQuery.of(MAPPER.readTree("""
+      {"folder": "Sent", "query": "plan", "filter": "unread", "sortBy": "sender", "sortDir": "asc", "limit": 5000,
+       "cursor": "YQBi"}"""), "INBOX");
+    assertEquals(new MailQuery("Sent", "plan", MailQuery.Filter.unread, MailQuery.SortBy.sender, false, 1000, "YQBi"),
+      query);
+    assertFalse(query.isNaturalOrder());
+    assertEquals(1, MailQuery.of(MAPPER.readTree("{\"limit\": 0}"), "INBOX").limit());
+  }
+
+  @Test
+  void malformedCursorIsRejected() throws Exception {
+    // not base64, no separator
+    for (String cursor : List.of("%%%", "YWJj")) {
+      IllegalArgumentException ex = assertThrows(IllegalArgumentException.class,
+        () -> MailQuery.of(MAPPER.readTree("{\"cursor\": \"" + cursor + "\"}"), "INBOX"));
+      assertTrue(ex.getMessage().startsWith("Invalid mail page cursor"));
+    }
+  }
+
+  @Test
+  void cursorPagingReturnsEveryMailOnceWhenKeysAreEqual() {
+    // same sender on several mails, so id breaks ties
+    List<MessageWrapper> mails = List.of(mail("a", "Bob", 3), mail("b", "alice", 1), mail("c", "bob", 2),
+      mail("d", "Carol", 5), mail("e", "bob", 4));
+    MailQuery first = query(MailQuery.SortBy.sender, false, null);
+    List<String> ids = new ArrayList<>();
+    String cursor = null;
+    do {
+      MailQuery query = query(MailQuery.SortBy.sender, false, cursor);
+      List<MessageWrapper> page = mails.stream().filter(query.afterCursor()).sorted(query.comparator()).limit(2).toList();
+      page.forEach(message -> ids.add(message.getId()));
+      cursor = page.size() < 2 ? null : query.cursorOf(page.get(page.size() - 1));
+    } while (cursor != null);
+    assertEquals(List.of("b", "a", "c", "e", "d"), ids);
+    assertEquals(ids, mails.stream().sorted(first.comparator()).map(MessageWrapper::getId).toList());
+  }
+
+  @Test
+  void dateCursorFollowsDescendingOrder() {
+    MailQuery query = query(MailQuery.SortBy.date, true, null);
+    MessageWrapper newest = mail("a", "x", 30);
+    MailQuery next = query(MailQuery.SortBy.date, true, query.cursorOf(newest));
+    assertEquals(List.of("c", "b"), Stream.of(newest, mail("b", "x", 10), mail("c", "x", 20))
+      .filter(next.afterCursor()).sorted(next.comparator()).map(MessageWrapper::getId).toList());
+  }
+
+  @Test
+  void filtersMatchFlagsAndAttachments() {
+    MessageWrapper read = mail("a", "x", 1);
+    read.setSeen(true);
+    MessageWrapper withAttachment = new MessageWrapper("b", "s", "INBOX", "x", null, 2, 2, new Date(2), 0, false,
+      Set.of("report.pdf"));
+    MessageWrapper withoutAttachments = new MessageWrapper("c", "s", "INBOX", "x", null, 3, 3, null, 0, false, null);
+    assertFalse(MailQuery.Filter.unread.predicate.test(read));
+    assertTrue(MailQuery.Filter.unread.predicate.test(withAttachment));
+    assertTrue(MailQuery.Filter.attachments.predicate.test(withAttachment));
+    assertFalse(MailQuery.Filter.attachments.predicate.test(read));
+    assertFalse(MailQuery.Filter.attachments.predicate.test(withoutAttachments));
+    assertNull(withoutAttachments.getReceivedDate());
+    // missing date sorts as oldest
+    MailQuery query = query(MailQuery.SortBy.date, true, null);
+    assertEquals(List.of("b", "a", "c"), Stream.of(withoutAttachments, read, withAttachment)
+      .sorted(query.comparator()).map(MessageWrapper::getId).toList());
+  }
+
+  private static MailQuery query(MailQuery.SortBy sortBy, boolean descending, String cursor) {
+    return new MailQuery("INBOX", null, MailQuery.Filter.all, sortBy, descending, 2, cursor);
+  }
+
+  private static MessageWrapper mail(String id, String sender, long time) {
+    return new MessageWrapper(id, "subject " + id, "INBOX", sender, null, (int) time, time, new Date(time), 0, false,
+      Set.of());
+  }
+}